@@ -22,6 +22,8 @@ import org.graphstream.graph.implementations.MultiGraph;
  */
 
 public class MyGraph extends MultiGraph {
+	private int nextEdgeId = 0; // edge ids are numbered in the order edges are added
+
 	public MyGraph (String id){
 		// generates a graph without strictChecking and with autoCreate
 		// allows to add edges without initiated nodes; initiates nodes automatically
@@ -45,10 +47,31 @@ public class MyGraph extends MultiGraph {
 
 
 
+	/**
+	 * Add an edge with everything the dispatchers expect on it
+	 * @param nodeId1 - one end, created if it does not exist yet
+	 * @param nodeId2 - other end, created if it does not exist yet
+	 * @param weight - time a train takes to traverse the edge
+	 * @param capacity - number of trains the edge holds at once
+	 * @return the new edge
+	 */
+	public Edge addTrack(String nodeId1, String nodeId2, int weight, int capacity) {
+		Edge newEdge = addEdge( Integer.toString(nextEdgeId++), nodeId1, nodeId2 );
+		newEdge.setAttribute("weight", weight );
+		newEdge.setAttribute("capacity", capacity );
+		newEdge.setAttribute("occupancy", 0); // trains on the edge right now
+		newEdge.setAttribute("reservations", new ArrayList<Integer>()); // initialize reservations, to be used in the improved case
+		for (Node node : new Node[] { newEdge.getSourceNode(), newEdge.getTargetNode() }) {
+			if (!node.hasAttribute("ui.label")) { node.addAttribute("ui.label", node.getId()); }
+		}
+		return newEdge;
+	}
+
 	/**
 	 * Returns a graph loaded from a file
 	 * The file is a list of edges, one edge per line
-	 * it should be formatted <source> <destination> <weight>
+	 * it should be formatted <source> <destination> <weight> [<capacity>]
+	 * where capacity is the number of trains the edge holds at once, 1 if left out
 	 * @param filename the name of the file to load the graph from
 	 * @param graphId the id to pass into the multigraph constructor
 	 * @return a new graph loaded from the file
@@ -61,17 +84,17 @@ public class MyGraph extends MultiGraph {
 		MyGraph graph = new MyGraph( graphId );
 		graph.addAttribute("ui.stylesheet", styleSheet); // build graph
 
-		Integer edgeId = 0;
-
-		while ( inputScanner.hasNext() ) {
-			// grab the 2 node id's
-			String nodeId1 = inputScanner.next();
-			String nodeId2 = inputScanner.next();
+		while ( inputScanner.hasNextLine() ) {
+			String line = inputScanner.nextLine().trim();
+			if ( line.isEmpty() ) {
+				continue;
+			}
+			// grab the 2 node id's, the weight and the optional capacity
+			String[] columns = line.split("\\s+");
+			String nodeId1 = columns[0];
+			String nodeId2 = columns[1];
 
-			Edge newEdge = graph.addEdge( edgeId.toString(), nodeId1, nodeId2 );
-			newEdge.setAttribute("weight", inputScanner.nextInt() );
-			newEdge.setAttribute("reservations", new ArrayList<Integer>()); // initialize reservations, to be used in the improved case
-			edgeId++;
+			graph.addTrack( nodeId1, nodeId2, Integer.parseInt( columns[2] ), columns.length > 3 ? Integer.parseInt( columns[3] ) : 1 );
 
 		}
 		inputScanner.close();
@@ -0,0 +1,225 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.graphstream.graph.Edge;
+import org.graphstream.graph.Node;
+import org.graphstream.ui.spriteManager.Sprite;
+
+import graph.MyGraph;
+import schedule.Schedule;
+
+/**
+ * Improved dispatch where every train is an agent that sleeps until its next event.
+ *
+ * A train only has two kinds of events: reaching the end of its edge, and the
+ * reservation of a delayed train coming due. When an agent handles an event it
+ * works out the tick of its next one and parks itself in a calendar under that tick.
+ * Each tick the coordinator advances the clock and wakes only the agents due then,
+ * so a tick costs as much as the trains changing edge or state, not the whole fleet.
+ *
+ * Routing and reservations are the same as ImprovedDispatch, so trains arrive at the
+ * same times. A moving train's location on its edge follows from the tick it is due
+ * at the end, so it is only written out when the display or telemetry reads it.
+ */
+public class AgentDispatch extends ImprovedDispatch {
+	private HashMap<Integer, List<TrainAgent>> calendar = new HashMap<Integer, List<TrainAgent>>(); // tick -> agents waking then
+	private int movingCount;  // agents on an edge
+	private int delayedCount; // agents waiting for a reservation
+
+	public AgentDispatch(MyGraph g) {
+		super(g);
+	}
+
+	public AgentDispatch(MyGraph g, boolean display) {
+		super(g, display);
+	}
+
+	/**
+	 * Reserve the path as usual, then hand the train to an agent
+	 */
+	@Override
+	protected Sprite reservePath(Schedule next, List<Edge> path, List<Node> nodePath, int start) {
+		Sprite sprite = super.reservePath(next, path, nodePath, start);
+		TrainAgent agent = new TrainAgent(sprite, path, sprite.getAttribute("reservations"));
+		sprite.addAttribute("agent", agent);
+		if (sprite.getAttribute("ui.class") == "delayed") {
+			delayedCount++;
+			park(agent, agent.reservations.get(0));
+		} else {
+			movingCount++;
+			park(agent, globalTime + agent.edge().<Integer>getAttribute("weight"));
+		}
+		return sprite;
+	}
+
+	/**
+	 * Wake the agents due this tick. As in ImprovedDispatch, trains leaving edges
+	 * go first so a delayed train never locks an edge before it is released.
+	 */
+	@Override
+	public void shift() {
+		List<TrainAgent> due = calendar.remove(globalTime);
+		if (due != null) {
+			List<TrainAgent> waiting = new ArrayList<TrainAgent>();
+			for (TrainAgent agent : due) {
+				if (agent.delayed) {
+					waiting.add(agent);
+				} else {
+					agent.leaveEdge();
+				}
+			}
+			for (TrainAgent agent : waiting) {
+				agent.enterEdge();
+			}
+		}
+		if (positionsWatched()) {
+			for (Sprite sprite : sman) {
+				sprite.<TrainAgent>getAttribute("agent").locate();
+			}
+		}
+		expireReservations();
+	}
+
+	/**
+	 * Reroute as ImprovedDispatch does, then bring the agent in line with the new path.
+	 * A delayed agent may now wait for another reservation, or start right away. A moving
+	 * agent is due at the new end of its edge if the edge's weight changed.
+	 */
+	@Override
+	protected void reroute(Sprite sprite) {
+		TrainAgent agent = sprite.getAttribute("agent");
+		super.reroute(sprite);
+		agent.index = 0; // the path now starts at the current edge
+		if (agent.delayed) {
+			calendar.get(agent.wake).remove(agent);
+			if (sprite.getAttribute("ui.class") != "delayed") {
+				agent.delayed = false;
+				delayedCount--;
+				movingCount++;
+				park(agent, globalTime + agent.edge().<Integer>getAttribute("weight"));
+			} else {
+				park(agent, agent.reservations.get(0));
+			}
+		} else {
+			// the current edge was booked again if its weight changed
+			int due = agent.reservations.get(0) + agent.edge().<Integer>getAttribute("weight");
+			if (due != agent.wake) {
+				calendar.get(agent.wake).remove(agent);
+				park(agent, due);
+			}
+		}
+	}
+
+	/**
+	 * Agents do not track their location. A moving agent has run since it entered its
+	 * edge, and the edge's weight, changed or not, gives the rest.
+	 */
+	@Override
+	protected int endOfEdge(Sprite sprite) {
+		TrainAgent agent = sprite.getAttribute("agent");
+		return globalTime + Math.max(1, agent.edge().<Integer>getAttribute("weight") - (globalTime - agent.reservations.get(0)));
+	}
+
+	@Override
+	protected boolean hasLocked() {
+		return movingCount > 0;
+	}
+
+	@Override
+	protected boolean hasDelayed() {
+		return delayedCount > 0;
+	}
+
+	private void park(TrainAgent agent, int tick) {
+		List<TrainAgent> agents = calendar.get(tick);
+		if (agents == null) {
+			agents = new ArrayList<TrainAgent>();
+			calendar.put(tick, agents);
+		}
+		agents.add(agent);
+		agent.wake = tick;
+	}
+
+	/**
+	 * One train and the state it needs between events
+	 */
+	private class TrainAgent {
+		Sprite sprite;
+		List<Edge> path;
+		List<Integer> reservations; // entry time of each edge still ahead, current edge first
+		int index;                  // position of the current edge in the path
+		boolean delayed;
+		int wake;                   // tick the agent is parked under
+
+		TrainAgent(Sprite sprite, List<Edge> path, List<Integer> reservations) {
+			this.sprite = sprite;
+			this.path = path;
+			this.reservations = reservations;
+			this.delayed = sprite.getAttribute("ui.class") == "delayed";
+		}
+
+		Edge edge() {
+			return path.get(index);
+		}
+
+		/**
+		 * Reached the end of the current edge: release it, then move onto
+		 * the next edge, wait for its reservation, or arrive
+		 */
+		void leaveEdge() {
+			Edge lastEdge = edge();
+			cleared(sprite, lastEdge);
+			release(lastEdge);
+			reservations.remove(0);
+			movingCount--;
+
+			if (index == path.size() - 1) {
+				getTrainCost(sprite);
+				recordState(sprite, "arrived");
+				sman.removeSprite(sprite.getId());
+				return;
+			}
+
+			index++;
+			sprite.attachToEdge(edge().getId());
+			setDirection(sprite, getCurrentNode(sprite, lastEdge), edge());
+			if (reservations.get(0) == globalTime) {
+				occupy(edge());
+				movingCount++;
+				park(this, globalTime + edge().<Integer>getAttribute("weight"));
+			} else {
+				delayed = true;
+				delayedCount++;
+				sprite.setAttribute("ui.class", "delayed");
+				recordState(sprite, "delayed");
+				park(this, reservations.get(0));
+			}
+		}
+
+		/**
+		 * The reservation for the current edge is due: lock it and start moving
+		 */
+		void enterEdge() {
+			delayed = false;
+			delayedCount--;
+			movingCount++;
+			sprite.setAttribute("ui.class", "moving");
+			occupy(edge());
+			recordState(sprite, "moving");
+			park(this, globalTime + edge().<Integer>getAttribute("weight"));
+		}
+
+		/**
+		 * Set the location a TrainDispatch train would have: distance travelled
+		 * from the start of the edge, none while waiting to enter it
+		 */
+		void locate() {
+			int weight = edge().getAttribute("weight");
+			int travelled = delayed ? 0 : weight - (wake - globalTime);
+			sprite.setAttribute("location", sprite.hasAttribute("fromSource") ? travelled : weight - travelled);
+		}
+	}
+}
@@ -0,0 +1,308 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.graphstream.graph.Edge;
+import org.graphstream.graph.Node;
+
+import graph.MyGraph;
+
+/**
+ * Cache of the k shortest loop-free routes between each source and destination,
+ * found with Yen's algorithm on the edge weights and ignoring locks.
+ *
+ * Routes for a pair are computed the first time the pair is asked for. Checking the
+ * cached routes against the current locks costs one look at each edge of a route, so
+ * a blocked shortest route can usually be replaced without a full search.
+ * If the cached routes hold the shortest unlocked route at all, the first free one
+ * is it, since they are sorted by length.
+ *
+ * When an edge changes, invalidate drops only the pairs the change can affect.
+ * Closed edges are left out of the search.
+ */
+public class AlternativeRoutes {
+	private int k; // routes kept per pair
+	private MyGraph graph;
+	private HashMap<String, List<Route>> cache = new HashMap<String, List<Route>>();
+
+	// snapshot of the graph the routes are searched on
+	private Edge[] edges;
+	private Node[] nodes;
+	private int[] weight;
+	private int[][] adjacent; // edge indices leaving each node
+
+	public AlternativeRoutes(MyGraph graph, int k) {
+		this.graph = graph;
+		this.k = k;
+		clear();
+	}
+
+	/**
+	 * Forget every cached route and take a new snapshot of the graph
+	 */
+	public void clear() {
+		cache.clear();
+		refresh();
+	}
+
+	/**
+	 * Drop the cached routes a change to an edge can affect, and take a new snapshot.
+	 * Removing an edge or making it longer can only hurt routes that use it, so the
+	 * other pairs keep their k shortest. An added or shortened edge can also give a
+	 * pair a new route, but only if the shortest way through the edge is shorter
+	 * than the pair's k-th route; that is checked with one search from each end.
+	 * @param edge - the edge that was added, closed or re-weighted
+	 * @param shorter - true if the edge was added or its weight lowered
+	 */
+	public void invalidate(Edge edge, boolean shorter) {
+		refresh();
+		int[] fromA = null;
+		int[] fromB = null;
+		int w = edge.getAttribute("weight");
+		if (shorter) {
+			fromA = distances(edge.getSourceNode().getIndex());
+			fromB = distances(edge.getTargetNode().getIndex());
+		}
+
+		Iterator<List<Route>> it = cache.values().iterator();
+		while (it.hasNext()) {
+			List<Route> routes = it.next();
+			boolean drop = false;
+			for (Route route : routes) {
+				if (route.edges.contains(edge)) { drop = true; }
+			}
+			if (shorter && !drop) {
+				if (routes.isEmpty()) {
+					drop = true; // an unreachable pair may be connected now
+				} else {
+					int s = routes.get(0).nodes.get(0).getIndex();
+					int t = routes.get(0).nodes.get(routes.get(0).nodes.size() - 1).getIndex();
+					long through = Math.min((long)fromA[s] + w + fromB[t], (long)fromB[s] + w + fromA[t]);
+					drop = routes.size() < k ? through < Integer.MAX_VALUE : through < routes.get(k - 1).length;
+				}
+			}
+			if (drop) { it.remove(); }
+		}
+	}
+
+	/**
+	 * Take a new snapshot of the graph, keeping the cached routes
+	 */
+	public void refresh() {
+		edges = new Edge[graph.getEdgeCount()];
+		nodes = new Node[graph.getNodeCount()];
+		weight = new int[edges.length];
+		adjacent = new int[nodes.length][];
+		for (Edge edge : graph.getEdgeList()) {
+			edges[edge.getIndex()] = edge;
+			weight[edge.getIndex()] = edge.getAttribute("weight");
+		}
+		for (Node node : graph) {
+			nodes[node.getIndex()] = node;
+			List<Edge> list = Dijkstra.getAdjacencies(node);
+			int[] open = new int[list.size()];
+			int count = 0;
+			for (Edge edge : list) {
+				if (!edge.hasAttribute("closed")) { open[count++] = edge.getIndex(); }
+			}
+			adjacent[node.getIndex()] = Arrays.copyOf(open, count);
+		}
+	}
+
+	/**
+	 * @return distance on the edge weights from source to every node, Integer.MAX_VALUE if unreachable
+	 */
+	private int[] distances(int source) {
+		int[] distance = new int[nodes.length];
+		Arrays.fill(distance, Integer.MAX_VALUE);
+		distance[source] = 0;
+
+		PriorityQueue<int[]> nodeQueue = new PriorityQueue<int[]>(10, Comparator.comparingInt((int[] entry) -> entry[1]));
+		nodeQueue.add(new int[] { source, 0 });
+		while (!nodeQueue.isEmpty()) {
+			int[] next = nodeQueue.poll();
+			int node = next[0];
+			if (next[1] > distance[node]) { continue; } // stale entry
+			for (int e : adjacent[node]) {
+				int other = opposite(e, node);
+				int through = distance[node] + weight[e];
+				if (through < distance[other]) {
+					distance[other] = through;
+					nodeQueue.add(new int[] { other, through });
+				}
+			}
+		}
+		return distance;
+	}
+
+	/**
+	 * Find the shortest cached route with no locked edges
+	 * @param source - starting node
+	 * @param destination - target node
+	 * @return the route, or null if every cached route is locked or there is none
+	 */
+	public Route findUnlocked(Node source, Node destination) {
+		for (Route route : getRoutes(source, destination)) {
+			if (route.isUnlocked()) { return route; }
+		}
+		return null;
+	}
+
+	/**
+	 * @return the k shortest routes from source to destination, shortest first
+	 */
+	public List<Route> getRoutes(Node source, Node destination) {
+		String key = source.getId() + " " + destination.getId();
+		List<Route> routes = cache.get(key);
+		if (routes == null) {
+			routes = yen(source.getIndex(), destination.getIndex());
+			cache.put(key, routes);
+		}
+		return routes;
+	}
+
+	/**
+	 * Yen's algorithm: each new route leaves an earlier route at some spur node
+	 * and takes the shortest way on that avoids the edges earlier routes used
+	 * from the same root, and the nodes already on the root
+	 */
+	private List<Route> yen(int source, int target) {
+		List<Route> found = new ArrayList<Route>();
+		if (source == target) { return found; }
+
+		Route first = shortest(source, target, new HashSet<Integer>(), new HashSet<Integer>());
+		if (first == null) { return found; }
+		found.add(first);
+
+		PriorityQueue<Route> candidates = new PriorityQueue<Route>(10, Comparator.comparingInt((Route route) -> route.length));
+		Set<List<Integer>> seen = new HashSet<List<Integer>>();
+		seen.add(first.edgeIndices);
+
+		while (found.size() < k) {
+			Route last = found.get(found.size() - 1);
+			for (int i = 0; i < last.edgeIndices.size(); i++) {
+				List<Integer> rootEdges = last.edgeIndices.subList(0, i);
+				int spur = last.nodeIndices.get(i);
+
+				Set<Integer> bannedEdges = new HashSet<Integer>();
+				for (Route route : found) {
+					if (route.edgeIndices.size() > i && route.edgeIndices.subList(0, i).equals(rootEdges)) {
+						bannedEdges.add(route.edgeIndices.get(i));
+					}
+				}
+				Set<Integer> bannedNodes = new HashSet<Integer>(last.nodeIndices.subList(0, i));
+
+				Route spurRoute = shortest(spur, target, bannedEdges, bannedNodes);
+				if (spurRoute == null) { continue; }
+
+				List<Integer> total = new ArrayList<Integer>(rootEdges);
+				total.addAll(spurRoute.edgeIndices);
+				if (seen.add(total)) {
+					candidates.add(route(source, total));
+				}
+			}
+			if (candidates.isEmpty()) { break; }
+			found.add(candidates.poll());
+		}
+		return found;
+	}
+
+	/**
+	 * Dijkstra on the edge weights, skipping banned edges and nodes
+	 * @return the shortest route, or null if there is none
+	 */
+	private Route shortest(int source, int target, Set<Integer> bannedEdges, Set<Integer> bannedNodes) {
+		int[] distance = new int[nodes.length];
+		int[] previous = new int[nodes.length]; // edge used to reach each node
+		Arrays.fill(distance, Integer.MAX_VALUE);
+		distance[source] = 0;
+
+		PriorityQueue<int[]> nodeQueue = new PriorityQueue<int[]>(10, Comparator.comparingInt((int[] entry) -> entry[1]));
+		nodeQueue.add(new int[] { source, 0 });
+		while (!nodeQueue.isEmpty()) {
+			int[] next = nodeQueue.poll();
+			int node = next[0];
+			if (next[1] > distance[node]) { continue; } // stale entry
+			if (node == target) { break; }
+
+			for (int e : adjacent[node]) {
+				int other = opposite(e, node);
+				if (bannedEdges.contains(e) || bannedNodes.contains(other)) { continue; }
+				int through = distance[node] + weight[e];
+				if (through < distance[other]) {
+					distance[other] = through;
+					previous[other] = e;
+					nodeQueue.add(new int[] { other, through });
+				}
+			}
+		}
+		if (distance[target] == Integer.MAX_VALUE) { return null; }
+
+		List<Integer> path = new ArrayList<Integer>();
+		for (int node = target; node != source; node = opposite(previous[node], node)) {
+			path.add(0, previous[node]);
+		}
+		return route(source, path);
+	}
+
+	private Route route(int source, List<Integer> edgeIndices) {
+		Route route = new Route();
+		route.edgeIndices = edgeIndices;
+		route.nodeIndices.add(source);
+		int at = source;
+		for (int e : edgeIndices) {
+			at = opposite(e, at);
+			route.nodeIndices.add(at);
+			route.edges.add(edges[e]);
+			route.length += weight[e];
+		}
+		for (int node : route.nodeIndices) { route.nodes.add(nodes[node]); }
+		return route;
+	}
+
+	private int opposite(int edge, int node) {
+		int a = edges[edge].getSourceNode().getIndex();
+		return a == node ? edges[edge].getTargetNode().getIndex() : a;
+	}
+
+	/**
+	 * A loop-free route with its edges, nodes and total weight
+	 */
+	public static class Route {
+		private List<Integer> edgeIndices;
+		private List<Integer> nodeIndices = new ArrayList<Integer>();
+		private List<Edge> edges = new ArrayList<Edge>();
+		private List<Node> nodes = new ArrayList<Node>();
+		private int length;
+
+		/**
+		 * @return true if no edge of the route is locked
+		 */
+		public boolean isUnlocked() {
+			for (Edge edge : edges) {
+				if (edge.getAttribute("ui.class") == "locked") { return false; }
+			}
+			return true;
+		}
+
+		public List<Edge> getEdges() {
+			return new ArrayList<Edge>(edges);
+		}
+
+		public List<Node> getNodes() {
+			return new ArrayList<Node>(nodes);
+		}
+
+		public int getLength() {
+			return length;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package main;
+
+import java.util.HashMap;
+
+import org.graphstream.graph.Edge;
+
+/**
+ * Congestion learned from the trains that have cleared each edge, for routing
+ * around hotspots instead of finding them again with every train.
+ *
+ * Each time a train leaves an edge, two observations are folded into exponentially
+ * weighted moving averages: how long the train waited before it could enter the edge,
+ * and the load on the edge, the other trains holding or reserved on it per unit of
+ * capacity. The penalty of an edge weighs the expected wait and the load times the
+ * edge's weight, so it is in the same time units as the weight. Edges that see no
+ * traffic forget their penalty with the given half-life, so a corridor traffic was
+ * sent away from is tried again.
+ *
+ * Only the improved dispatchers learn congestion. Base trains never wait once
+ * dispatched and hold a locked edge alone, so nothing a base train clears says more
+ * than the lock it already routes around. The improved dispatcher routes around every
+ * reservation, so load counts twice there and wait is the useful term.
+ */
+public class CongestionStats {
+	private double alpha;    // weight of the newest observation
+	private double waitWeight; // routing cost per tick of average wait
+	private double loadWeight; // routing cost per unit of average load, times the edge's weight
+	private double halfLife; // ticks for an unused edge's penalty to halve
+	private HashMap<Edge, Congestion> stats = new HashMap<Edge, Congestion>();
+
+	/**
+	 * @param alpha - weight of the newest observation, between 0 and 1
+	 * @param waitWeight - routing cost per tick of average wait
+	 * @param loadWeight - routing cost per unit of average load, times the edge's weight
+	 * @param halfLife - ticks for the penalty of an edge no train clears to halve
+	 */
+	public CongestionStats(double alpha, double waitWeight, double loadWeight, double halfLife) {
+		this.alpha = alpha;
+		this.waitWeight = waitWeight;
+		this.loadWeight = loadWeight;
+		this.halfLife = halfLife;
+	}
+
+	/**
+	 * Fold in a train clearing an edge
+	 * @param edge - the edge the train left
+	 * @param wait - time the train waited before entering the edge
+	 * @param load - other trains holding or reserved on the edge, per unit of capacity
+	 */
+	public void observe(Edge edge, int wait, double load) {
+		Congestion congestion = stats.get(edge);
+		if (congestion == null) {
+			congestion = new Congestion();
+			congestion.wait = wait;
+			congestion.load = load;
+			stats.put(edge, congestion);
+		} else {
+			congestion.wait += alpha * (wait - congestion.wait);
+			congestion.load += alpha * (load - congestion.load);
+		}
+		congestion.penalty = waitWeight * congestion.wait + loadWeight * congestion.load * (int)edge.getAttribute("weight");
+		congestion.time = TrainDispatch.globalTime;
+	}
+
+	/**
+	 * @return the routing cost to add to the edge's weight now
+	 */
+	public int penalty(Edge edge) {
+		Congestion congestion = stats.get(edge);
+		if (congestion == null) { return 0; }
+		double decay = Math.pow(0.5, (TrainDispatch.globalTime - congestion.time) / halfLife);
+		return (int)Math.round(congestion.penalty * decay);
+	}
+
+	/**
+	 * @return average wait before entering the edge, 0 if no train has cleared it
+	 */
+	public double getWait(Edge edge) {
+		Congestion congestion = stats.get(edge);
+		return congestion == null ? 0 : congestion.wait;
+	}
+
+	/**
+	 * @return average load on the edge, 0 if no train has cleared it
+	 */
+	public double getLoad(Edge edge) {
+		Congestion congestion = stats.get(edge);
+		return congestion == null ? 0 : congestion.load;
+	}
+
+	private static class Congestion {
+		double wait;
+		double load;
+		double penalty; // at time
+		int time;
+	}
+}
@@ -0,0 +1,117 @@
+package main;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Running summary of train costs or delays that takes the same memory however
+ * many trains arrive.
+ *
+ * Count, mean, variance, min and max are exact. Quantiles come from a histogram
+ * that counts values below EXACT one by one and larger values in buckets a factor
+ * of GAMMA wide, so a quantile above EXACT is within about 1% of the true value. The
+ * histogram never holds more than a few thousand buckets.
+ */
+public class CostStats {
+	private static final int EXACT = 1024;     // values smaller than this are counted exactly
+	private static final double GAMMA = 1.02;  // ratio between bucket bounds above EXACT
+
+	private long count;
+	private long sum;
+	private double mean; // running mean for the variance, sum / count is reported
+	private double m2;   // sum of squared differences from the mean
+	private int min = Integer.MAX_VALUE;
+	private int max = Integer.MIN_VALUE;
+	private TreeMap<Integer, Long> histogram = new TreeMap<Integer, Long>(); // bucket -> values in it
+
+	public void add(int value) {
+		count++;
+		sum += value;
+		double delta = value - mean;
+		mean += delta / count;
+		m2 += delta * (value - mean);
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+		histogram.merge(bucket(value), 1L, Long::sum);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the mean, NaN if nothing was added
+	 */
+	public double getMean() {
+		return sum / (double)count;
+	}
+
+	/**
+	 * @return the population variance, 0 if nothing was added
+	 */
+	public double getVariance() {
+		return count == 0 ? 0 : m2 / count;
+	}
+
+	/**
+	 * @return the smallest value, 0 if nothing was added
+	 */
+	public int getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	/**
+	 * @return the largest value, 0 if nothing was added
+	 */
+	public int getMax() {
+		return count == 0 ? 0 : max;
+	}
+
+	/**
+	 * @param p - share of values at or below the result, between 0 and 1
+	 * @return the value of rank ceil(count * p) in sorted order, 0 if nothing was added
+	 */
+	public int quantile(double p) {
+		if (count == 0) { return 0; }
+		long rank = Math.max(1, (long)Math.ceil(count * p));
+		if (rank >= count) { return max; }
+		long seen = 0;
+		for (Map.Entry<Integer, Long> entry : histogram.entrySet()) {
+			seen += entry.getValue();
+			if (seen >= rank) {
+				return Math.max(min, Math.min(max, representative(entry.getKey())));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * @return the number of values at or below value; above EXACT, values in the same bucket count too
+	 */
+	public long countAtMost(int value) {
+		long toReturn = 0;
+		for (long inBucket : histogram.headMap(bucket(value), true).values()) { toReturn += inBucket; }
+		return toReturn;
+	}
+
+	/**
+	 * Map a value to its bucket, keeping the order of values
+	 */
+	private static int bucket(int value) {
+		long magnitude = Math.abs((long)value);
+		if (magnitude < EXACT) { return value; }
+		int index = EXACT + (int)(Math.log(magnitude / (double)EXACT) / Math.log(GAMMA));
+		return value < 0 ? -index : index;
+	}
+
+	/**
+	 * @return the middle of a bucket
+	 */
+	private static int representative(int bucket) {
+		int index = Math.abs(bucket);
+		if (index < EXACT) { return bucket; }
+		double low = EXACT * Math.pow(GAMMA, index - EXACT);
+		int value = (int)Math.round(low * (1 + GAMMA) / 2);
+		return bucket < 0 ? -value : value;
+	}
+}
@@ -17,16 +17,37 @@ import org.graphstream.graph.Node;
  */
 public class Dijkstra {
     Node source;
+    CongestionStats congestion; // if set, learned congestion is added to edge costs
  
     public Dijkstra(Node source) {
         this.source = source;
     }
 
+    /**
+     * Add each edge's congestion penalty to its cost in computeAllPaths
+     * @param congestion - learned congestion, or null to route on weights alone
+     */
+    public void setCongestion(CongestionStats congestion) {
+        this.congestion = congestion;
+    }
+
+    /**
+     * @return the congestion penalty of the edge, 0 if congestion is not used
+     */
+    int penalty(Edge edge) {
+        return congestion == null ? 0 : congestion.penalty(edge);
+    }
+
 	/**
 	 * Compute dijkstra's looking only at unlocked paths
 	 */
 	public void computeUnlockedPaths()
     {
+		DispatchEvents.DijkstraRun event = new DispatchEvents.DijkstraRun();
+		event.begin();
+		int settled = 0;
+		int relaxed = 0;
+
 		// set the minimum distance on all nodes in the graph to be the maximum value
 		for(Node node : source.getGraph()) {
         	node.addAttribute("minDistance", Integer.MAX_VALUE);
@@ -40,10 +61,12 @@ public class Dijkstra {
 
         while (!nodeQueue.isEmpty()) {
             Node next = nodeQueue.poll();
+            settled++;
 
             // Visit each edge exiting next
             for (Edge edge : getAdjacencies(next))
             {
+                relaxed++;
             	// if the edge is locked, skip this edge
             	if (edge.getAttribute("ui.class") == "locked") {
             		continue;
@@ -61,6 +84,14 @@ public class Dijkstra {
                 }
             }
         }
+
+        if (event.shouldCommit()) {
+        	event.source = source.getId();
+        	event.mode = "unlocked";
+        	event.nodesSettled = settled;
+        	event.edgesRelaxed = relaxed;
+        	event.commit();
+        }
     }
 	
 	/**
@@ -70,6 +101,11 @@ public class Dijkstra {
 	 */
 	public void computeAllPaths(int globalTime)
     {
+		DispatchEvents.DijkstraRun event = new DispatchEvents.DijkstraRun();
+		event.begin();
+		int settled = 0;
+		int relaxed = 0;
+
 		// set the minimum distance on all nodes in the graph to be the maximum value
 		for(Node node : source.getGraph()) {
         	node.addAttribute("minDistance", Integer.MAX_VALUE);
@@ -86,10 +122,16 @@ public class Dijkstra {
         
         while (!nodeQueue.isEmpty()) {
             Node next = nodeQueue.poll();
+            settled++;
 
             // Visit each edge exiting next
             for (Edge edge : getAdjacencies(next))
             {
+                relaxed++;
+                // closed edges take no new trains
+                if (edge.hasAttribute("closed")) {
+                	continue;
+                }
                 Node target = edge.getOpposite(next);
                 
                 if (!edge.hasAttribute("available")) {
@@ -105,7 +147,8 @@ public class Dijkstra {
                 int edgeAvailable = edge.getAttribute("available"); // time at which the edge is available
                 if (edgeAvailable > nodeReady) { cost += edgeAvailable - nodeReady; }
 
-                int distanceThrough = (int)next.getAttribute("minDistance") + cost;
+                // congestion makes the edge look longer but does not change when the train gets there
+                int distanceThrough = (int)next.getAttribute("minDistance") + cost + penalty(edge);
                 if (distanceThrough < (int)target.getAttribute("minDistance")) {
                     nodeQueue.remove(target);
 
@@ -113,13 +156,42 @@ public class Dijkstra {
                     target.addAttribute("previous", next);
  
                     // set the time at which the train is ready for the next path at the cost of traversing that path
-                    target.setAttribute("ready", cost);
+                    target.setAttribute("ready", nodeReady + cost);
                     nodeQueue.add(target);
                 }
             }
         }
+
+        if (event.shouldCommit()) {
+        	event.source = source.getId();
+        	event.mode = "all";
+        	event.nodesSettled = settled;
+        	event.edgesRelaxed = relaxed;
+        	event.commit();
+        }
     }
 	
+	/**
+	 * After computeUnlockedPaths, find the locked edges leading out of the part of the
+	 * graph the source can reach. Any route to a node outside that part has to use one
+	 * of them, so nothing changes for it until one of them is unlocked.
+	 * Closed edges never unlock, so they are not counted.
+	 * @return locked, open edges from a reached node to an unreached node
+	 */
+	public List<Edge> getBlockingEdges() {
+		List<Edge> blocking = new ArrayList<Edge>();
+		for (Node node : source.getGraph()) {
+			if ((int)node.getAttribute("minDistance") == Integer.MAX_VALUE) { continue; }
+			for (Edge edge : getAdjacencies(node)) {
+				if (edge.getAttribute("ui.class") == "locked" && !edge.hasAttribute("closed")
+						&& (int)edge.getOpposite(node).getAttribute("minDistance") == Integer.MAX_VALUE) {
+					blocking.add(edge);
+				}
+			}
+		}
+		return blocking;
+	}
+
 	/**
 	 * get all edges adjacent to node
 	 * @param node
@@ -192,34 +264,114 @@ public class Dijkstra {
 	public static void checkReservations(Edge edge, int arrivalTime) {
 		List<Integer> reservations = edge.getAttribute("reservations");
 		int weight = edge.getAttribute("weight");
+		int capacity = edge.getAttribute("capacity");
 
-		edge.setAttribute("available", arrivalTime);
-		if (!reservations.isEmpty()) {
-			for (int i = 0; i < reservations.size(); i++) {
-				if (arrivalTime <= reservations.get(i) && reservations.get(i) <= arrivalTime + weight) {
-					for (int j = i; j < reservations.size() - 1; j++) {
-						if (reservations.get(j+1) - (reservations.get(j) + weight) >= weight) {
-							edge.setAttribute("available", reservations.get(j) + weight);
-							return;
-						}
+		DispatchEvents.ReservationCheck event = new DispatchEvents.ReservationCheck();
+		event.begin();
+		int available = nextAvailable(reservations, weight, capacity, arrivalTime);
+		edge.setAttribute("available", available);
+
+		if (event.shouldCommit()) {
+			event.edge = edge.getId();
+			event.reservations = reservations.size();
+			event.arrivalTime = arrivalTime;
+			event.delay = available - arrivalTime;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Find the time at which a train arriving at arrivalTime may enter an edge that
+	 * holds capacity trains at once. A train holds the edge from its reservation time
+	 * for weight time units, so the train fits at a time if, at every moment of its
+	 * own stay, fewer than capacity reservations hold the edge.
+	 *
+	 * Every reservation lasts weight, so their ends are sorted like their starts. The
+	 * two lists are swept together as +1 and -1 events from the first reservation still
+	 * holding the edge at arrivalTime, and the stay is pushed past each period in which
+	 * the edge is full. The sweep stops once no reservation starts before the stay ends,
+	 * so a check costs a binary search plus the reservations it passes.
+	 * Single track edges use the exclusive check below.
+	 * @param reservations - sorted reservation times of the edge
+	 * @param weight - weight of the edge
+	 * @param capacity - number of trains the edge holds at once
+	 * @param arrivalTime - time the train intends to enter the edge
+	 * @return the earliest time the edge is available to the train
+	 */
+	public static int nextAvailable(List<Integer> reservations, int weight, int capacity, int arrivalTime) {
+		if (capacity <= 1) {
+			return nextAvailable(reservations, weight, arrivalTime);
+		}
+		int time = arrivalTime; // earliest start of the stay not ruled out yet
+		int holding = 0;
+		int first = firstAfter(reservations, arrivalTime - weight);
+		int starts = first; // next reservation to start
+		int ends = first;   // next reservation to end
+		while (starts < reservations.size() || holding >= capacity) {
+			int end = reservations.get(ends) + weight;
+			// a train leaving at the moment another enters makes room for it first
+			if (ends < starts && (starts == reservations.size() || end <= reservations.get(starts))) {
+				ends++;
+				if (holding-- == capacity) { time = Math.max(time, end); } // the edge was full until end
+			} else {
+				int start = reservations.get(starts++);
+				if (start >= time + weight && holding < capacity) { return time; }
+				holding++;
+			}
+		}
+		return time;
+	}
+
+	/**
+	 * @return the index of the first reservation after time, or the size of the list if there is none
+	 */
+	private static int firstAfter(List<Integer> reservations, int time) {
+		int low = 0;
+		int high = reservations.size();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (reservations.get(middle) > time) {
+				high = middle;
+			} else {
+				low = middle + 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Find the time at which a train arriving at arrivalTime may enter an edge,
+	 * given that edge's sorted reservations. Does not touch any graph attributes,
+	 * so it can be used on copies of the reservation lists.
+	 * @param reservations - sorted reservation times of the edge
+	 * @param weight - weight of the edge
+	 * @param arrivalTime - time the train intends to enter the edge
+	 * @return the time the edge is available to the train
+	 */
+	public static int nextAvailable(List<Integer> reservations, int weight, int arrivalTime) {
+		int available = arrivalTime;
+		for (int i = 0; i < reservations.size(); i++) {
+			if (arrivalTime <= reservations.get(i) && reservations.get(i) <= arrivalTime + weight) {
+				for (int j = i; j < reservations.size() - 1; j++) {
+					if (reservations.get(j+1) - (reservations.get(j) + weight) >= weight) {
+						return reservations.get(j) + weight;
 					}
-					// if there are no time periods available within reservations, set the availability to after
-					edge.setAttribute("available", reservations.get(reservations.size() - 1) + weight);
-					return;
 				}
-				if (reservations.get(i) <= arrivalTime && reservations.get(i) + weight >= arrivalTime) {
-					for (int j = i; j < reservations.size() - 1; j++) {
-						if (reservations.get(j) - (reservations.get(j+1) + weight) == weight) {
-							edge.setAttribute("available", reservations.get(j) + weight);
-							break;
-						}
+				// if there are no time periods available within reservations, set the availability to after
+				return reservations.get(reservations.size() - 1) + weight;
+			}
+			if (reservations.get(i) <= arrivalTime && reservations.get(i) + weight >= arrivalTime) {
+				for (int j = i; j < reservations.size() - 1; j++) {
+					if (reservations.get(j) - (reservations.get(j+1) + weight) == weight) {
+						available = reservations.get(j) + weight;
+						break;
 					}
-					// if there are no time periods available within reservations, set the availability to after
-					edge.setAttribute("available", reservations.get(reservations.size() - 1) + weight);
 				}
-
+				// if there are no time periods available within reservations, set the availability to after
+				available = reservations.get(reservations.size() - 1) + weight;
 			}
 		}
+		return available;
 	}
 
 } 
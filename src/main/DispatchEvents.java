@@ -0,0 +1,122 @@
+package main;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for routing and dispatch internals.
+ *
+ * Every event is disabled by default, so a normal run only pays for a few counters.
+ * To record them, start the program with the settings in dispatch.jfc, for example
+ * java -XX:StartFlightRecording:settings=dispatch.jfc,filename=dispatch.jfr -cp "*:." main.Driver Paris.txt
+ * and open the recording in JDK Mission Control or with the jfr tool.
+ */
+final class DispatchEvents {
+
+	private DispatchEvents() {}
+
+	@Name("traindispatch.Dijkstra")
+	@Label("Dijkstra Run")
+	@Description("One shortest path computation from a source node")
+	@Category({ "Train Dispatch", "Routing" })
+	@Enabled(false)
+	@StackTrace(false)
+	static class DijkstraRun extends Event {
+		@Label("Source")
+		String source;
+
+		@Label("Mode")
+		@Description("unlocked: locked edges skipped, all: reservation delays added")
+		String mode;
+
+		@Label("Nodes Settled")
+		int nodesSettled;
+
+		@Label("Edges Relaxed")
+		@Description("Edges examined from settled nodes")
+		int edgesRelaxed;
+	}
+
+	@Name("traindispatch.ReservationCheck")
+	@Label("Reservation Check")
+	@Description("Search of an edge's reservations for the first free slot")
+	@Category({ "Train Dispatch", "Reservations" })
+	@Enabled(false)
+	@StackTrace(false)
+	static class ReservationCheck extends Event {
+		@Label("Edge")
+		String edge;
+
+		@Label("Reservations")
+		@Description("Length of the edge's reservation list")
+		int reservations;
+
+		@Label("Arrival Time")
+		int arrivalTime;
+
+		@Label("Delay")
+		@Description("Time the train must wait before entering the edge")
+		int delay;
+	}
+
+	@Name("traindispatch.Dispatch")
+	@Label("Dispatch Decision")
+	@Description("A train given a path and sent onto the network")
+	@Category({ "Train Dispatch", "Dispatch" })
+	@Enabled(false)
+	@StackTrace(false)
+	static class Dispatch extends Event {
+		@Label("Train")
+		String train;
+
+		@Label("Source")
+		String source;
+
+		@Label("Destination")
+		String destination;
+
+		@Label("Dispatch Time")
+		@Description("Time the train was ready")
+		int dispatchTime;
+
+		@Label("Global Time")
+		int globalTime;
+
+		@Label("Path Length")
+		@Description("Number of edges in the path")
+		int pathLength;
+
+		@Label("Start Delay")
+		@Description("Time the train waits before entering its first edge")
+		int startDelay;
+	}
+
+	@Name("traindispatch.TrainState")
+	@Label("Train State Change")
+	@Category({ "Train Dispatch", "Trains" })
+	@Enabled(false)
+	@StackTrace(false)
+	static class TrainState extends Event {
+		@Label("Train")
+		String train;
+
+		@Label("State")
+		@Description("moving, delayed or arrived")
+		String state;
+
+		@Label("Edge")
+		String edge;
+
+		@Label("Global Time")
+		int globalTime;
+
+		@Label("Ticks Delayed")
+		@Description("For a delayed train starting to move, how long it waited")
+		int ticksDelayed;
+	}
+}
@@ -0,0 +1,224 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.graphstream.graph.Edge;
+import org.graphstream.graph.Node;
+import org.graphstream.ui.spriteManager.Sprite;
+
+import schedule.Schedule;
+
+/**
+ * Long-running dispatcher that accepts trains while the simulation runs.
+ *
+ * Trains are submitted from any thread and answered with a future. Submission never
+ * blocks: the queue is bounded, and a full queue rejects the train so callers feel the
+ * backpressure. A single service thread owns the graph. Between ticks it takes every
+ * request that has arrived, routes them as one batch with the improved dispatcher's
+ * reservations, and records how long each decision took. A train submitted while a
+ * tick is running waits for that tick to finish, so decision latency is bounded by
+ * the time one tick takes plus the routing time of the batch.
+ */
+public class DispatchService implements Runnable {
+	private ImprovedDispatch dispatcher;
+	private BlockingQueue<Request> requests;
+	private int maxBatch;       // most requests decided before checking the clock again
+	private long tickNanos;     // real time between simulation ticks
+	private volatile boolean running; // changed under accepting, so no request is queued after the final drain
+	private final Object accepting = new Object();
+	private Thread thread;
+
+	// decision latencies in microseconds, read by getLatencyReport()
+	private CostStats latencies = new CostStats();
+	private int missedTargets;
+	private int rejected;
+
+	/**
+	 * @param dispatcher - dispatcher whose graph and reservations are used
+	 * @param capacity - requests that may wait before new ones are rejected
+	 * @param maxBatch - most requests decided together
+	 * @param tickMillis - real time between simulation ticks
+	 */
+	public DispatchService(ImprovedDispatch dispatcher, int capacity, int maxBatch, long tickMillis) {
+		this.dispatcher = dispatcher;
+		this.requests = new ArrayBlockingQueue<Request>(capacity);
+		this.maxBatch = maxBatch;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+	}
+
+	/**
+	 * Start the service thread
+	 */
+	public void start() {
+		running = true;
+		thread = new Thread(this, "dispatch-service");
+		thread.start();
+	}
+
+	/**
+	 * Stop accepting trains, decide the ones already queued, and wait until every train has arrived
+	 */
+	public void shutdown() throws InterruptedException {
+		synchronized (accepting) {
+			running = false;
+		}
+		thread.join();
+	}
+
+	/**
+	 * Ask for a train to be dispatched as soon as possible. Never blocks.
+	 * @param source - id of the starting node
+	 * @param destination - id of the target node
+	 * @param targetMillis - latency the caller expects the decision within
+	 * @return the decision, completed by the service thread; completed exceptionally
+	 * with a RejectedExecutionException if the queue is full or the service stopped
+	 */
+	public CompletableFuture<Decision> submit(String source, String destination, long targetMillis) {
+		Request request = new Request(source, destination, TimeUnit.MILLISECONDS.toNanos(targetMillis));
+		boolean queued;
+		synchronized (accepting) {
+			queued = running && requests.offer(request);
+		}
+		if (!queued) {
+			synchronized (this) { rejected++; }
+			request.decision.completeExceptionally(new RejectedExecutionException(
+					running ? "dispatch queue is full" : "dispatch service stopped"));
+		}
+		return request.decision;
+	}
+
+	@Override
+	public void run() {
+		List<Request> batch = new ArrayList<Request>(maxBatch);
+		try {
+			while (running || !requests.isEmpty()) {
+				long nextTick = System.nanoTime() + tickNanos;
+
+				// decide requests as they arrive until the next tick is due
+				long remaining;
+				while ((remaining = nextTick - System.nanoTime()) > 0) {
+					Request first = requests.poll(remaining, TimeUnit.NANOSECONDS);
+					if (first == null) { break; }
+					batch.add(first);
+					requests.drainTo(batch, maxBatch - 1); // requests that arrived together are decided together
+					decide(batch);
+					batch.clear();
+				}
+				dispatcher.timeTravel();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			// only left over if the thread was interrupted or a tick failed; no caller is left waiting
+			synchronized (accepting) {
+				running = false;
+			}
+			RejectedExecutionException stopped = new RejectedExecutionException("dispatch service stopped");
+			for (Request undecided : batch) { undecided.decision.completeExceptionally(stopped); }
+			Request late;
+			while ((late = requests.poll()) != null) {
+				late.decision.completeExceptionally(stopped);
+			}
+		}
+
+		while (dispatcher.hasLocked() || dispatcher.hasDelayed()) {
+			dispatcher.timeTravel();
+		}
+	}
+
+	/**
+	 * Route and reserve each request in arrival order. A request whose routing throws
+	 * is completed with the exception and the rest of the batch is still decided.
+	 * @param batch - requests taken off the queue
+	 */
+	private void decide(List<Request> batch) {
+		for (Request request : batch) {
+			try {
+				decide(request);
+			} catch (RuntimeException e) {
+				request.decision.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Route and reserve one request and complete its decision
+	 */
+	private void decide(Request request) {
+		Node source = TrainDispatch.graph.getNode(request.source);
+		Node destination = TrainDispatch.graph.getNode(request.destination);
+		Decision decision = new Decision();
+		decision.dispatchTime = TrainDispatch.globalTime;
+
+		if (source != null && destination != null && source != destination) {
+			Sprite sprite = dispatcher.dispatchTrain(new Schedule(source, destination, TrainDispatch.globalTime));
+			if (sprite != null) {
+				decision.train = sprite.getId();
+				List<Edge> path = sprite.getAttribute("path");
+				List<Integer> reservations = sprite.getAttribute("reservations");
+				for (Edge edge : path) { decision.path.add(edge.getId()); }
+				decision.reservations.addAll(reservations);
+				decision.arrivalTime = reservations.get(reservations.size() - 1)
+						+ (int)path.get(path.size() - 1).getAttribute("weight");
+			}
+		}
+
+		decision.latencyNanos = System.nanoTime() - request.submitted;
+		record(decision.latencyNanos, request.targetNanos);
+		request.decision.complete(decision);
+	}
+
+	private synchronized void record(long latency, long target) {
+		latencies.add((int)Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMicros(latency)));
+		if (latency > target) { missedTargets++; }
+	}
+
+	/**
+	 * @return number of decisions, mean, median, 99th percentile and max latency,
+	 * and how many decisions missed their target or were rejected; percentiles above
+	 * a millisecond are within about 1%
+	 */
+	public synchronized String getLatencyReport() {
+		if (latencies.getCount() == 0) { return "no decisions, " + rejected + " rejected"; }
+		return String.format("%d decisions: mean %.1f us, p50 %d us, p99 %d us, max %d us, %d missed target, %d rejected",
+				latencies.getCount(), latencies.getMean(), latencies.quantile(0.5),
+				latencies.quantile(0.99), latencies.getMax(), missedTargets, rejected);
+	}
+
+	/**
+	 * Routing and reservation result for one submitted train.
+	 * An empty path means there was no route.
+	 */
+	public static class Decision {
+		public String train;            // sprite id of the dispatched train
+		public int dispatchTime;        // simulation time the train was dispatched at
+		public int arrivalTime;         // reserved arrival time at the destination
+		public List<String> path = new ArrayList<String>();            // edge ids in order
+		public List<Integer> reservations = new ArrayList<Integer>();  // reserved entry time of each edge
+		public long latencyNanos;       // time from submission to decision
+
+		public String toString() {
+			return train + " " + path + " at " + reservations + " arriving " + arrivalTime;
+		}
+	}
+
+	private static class Request {
+		String source;
+		String destination;
+		long targetNanos;
+		long submitted = System.nanoTime();
+		CompletableFuture<Decision> decision = new CompletableFuture<Decision>();
+
+		Request(String source, String destination, long targetNanos) {
+			this.source = source;
+			this.destination = destination;
+			this.targetNanos = targetNanos;
+		}
+	}
+}
@@ -2,6 +2,8 @@ package main;
 
 import java.io.IOException;
 
+import org.graphstream.graph.Edge;
+
 import graph.MyGraph;
 import schedule.Schedule;
 
@@ -15,23 +17,96 @@ public class Driver {
 
        boolean base = true;
        boolean second = true;
+       boolean planned = false; // plan the second case in rolling-horizon windows
+       boolean lookahead = false; // simulate alternative routes ahead before each second case dispatch
+       boolean online = false; // submit the schedule to a running dispatch service
+       boolean maintenance = false; // close a track part way through the base and second cases
+       boolean telemetry = false; // write the second case's train positions to telemetry.bin
+       boolean congestion = false; // route the second case around edges learned to be congested
        
        // Schedule takes parameters <maxTime>, <scheduleLength>, graph
        // where maxTime is the latest time a train will be dispatched
        // and scheduleLength is the number of trains in the schedule 
        String schedule = Schedule.createRandomTrainFile(10, 10, graph); 
 
+       // maintenance works on the first track; a run replaces it, so each run looks it up by its ends
+       Edge track = graph.getEdge(0);
+       String[] ends = { track.getSourceNode().getId(), track.getTargetNode().getId() };
+
        if(base) {
     	   TrainDispatch baseCase = new TrainDispatch(graph);
+    	   if(maintenance) {
+    		   scheduleMaintenance(baseCase, graph, ends);
+    	   }
     	   baseCase.dispatch(schedule);
     	   System.out.println(baseCase.getAverageCost());
+    	   System.out.print(baseCase.getPriorityReport());
        }
        
        if(second) {
-    	   TrainDispatch secondCase = new ImprovedDispatch(graph);
+    	   ImprovedDispatch secondCase = new ImprovedDispatch(graph);
+    	   if(planned) {
+    		   // planner takes parameters <horizon>, <budget in ms>, <threads>
+    		   secondCase.setPlanner(new RollingHorizonPlanner(5, 50, Runtime.getRuntime().availableProcessors()));
+    	   }
+    	   if(maintenance) {
+    		   scheduleMaintenance(secondCase, graph, ends);
+    	   }
+    	   TelemetryPublisher publisher = null;
+    	   if(telemetry) {
+    		   // publisher takes parameters <file>, <frames buffered>, <frames between key frames>
+    		   publisher = TelemetryPublisher.toFile("telemetry.bin", 1024, 100);
+    		   secondCase.setTelemetry(publisher);
+    	   }
+    	   if(congestion) {
+    		   // stats take parameters <weight of newest observation>, <wait weight>, <load weight>, <half-life>
+    		   secondCase.setCongestion(new CongestionStats(0.2, 1, 0, 20));
+    	   }
+    	   if(lookahead) {
+    		   // look-ahead takes parameter <horizon>
+    		   secondCase.setLookahead(5);
+    	   }
     	   secondCase.dispatch(schedule);
+    	   if(publisher != null) {
+    		   try {
+    			   publisher.close();
+    		   } catch (InterruptedException e) {}
+    	   }
     	   System.out.println(secondCase.getAverageCost());
+    	   if(congestion) {
+    		   System.out.println(secondCase.getConflicts() + " reservation conflicts");
+    	   }
+    	   System.out.print(secondCase.getPriorityReport());
+       }
+
+       if(online) {
+    	   // service takes parameters <queue capacity>, <batch size>, <tick in ms>
+    	   // a train submitted during a tick waits for it, so the decision target must be longer than a tick
+    	   DispatchService service = new DispatchService(new ImprovedDispatch(graph), 100, 10, 100);
+    	   service.start();
+    	   for (Schedule train : Schedule.loadTrainsfromFile(graph, schedule)) {
+    		   service.submit(train.getSource().getId(), train.getDestination().getId(), 150)
+    		   		.thenAccept(decision -> System.out.println("Decided " + decision));
+    	   }
+    	   try {
+    		   service.shutdown();
+    	   } catch (InterruptedException e) {}
+    	   System.out.println(service.getLatencyReport());
        }
 
    }
+
+   /**
+    * Close a track at time 5 and open the same track again at time 20
+    * @param ends - ids of the nodes at either end of the track
+    */
+   private static void scheduleMaintenance(TrainDispatch dispatch, MyGraph graph, String[] ends) {
+       String from = ends[0];
+       String to = ends[1];
+       Edge edge = graph.getNode(from).getEdgeBetween(to);
+       int weight = edge.getAttribute("weight");
+       int capacity = edge.getAttribute("capacity");
+       dispatch.scheduleChange(5, () -> dispatch.closeTrack(edge));
+       dispatch.scheduleChange(20, () -> dispatch.addTrack(from, to, weight, capacity));
+   }
 }
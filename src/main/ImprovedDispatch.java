@@ -2,8 +2,10 @@ package main;
 
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.stream.IntStream;
 
 import org.graphstream.graph.Edge;
 import org.graphstream.graph.Node;
@@ -11,12 +13,59 @@ import org.graphstream.ui.spriteManager.Sprite;
 
 import graph.MyGraph;
 import schedule.Schedule;
+import schedule.ScheduleQueue;
 
 public class ImprovedDispatch extends TrainDispatch {
+	private RollingHorizonPlanner planner; // if set, trains are dispatched in planned windows
+	private HashSet<Edge> reservedEdges = new HashSet<Edge>(); // edges with reservations that have not expired
+	private int lookahead; // trains released this far ahead are simulated before choosing a route, 0 for greedy
+	private ScheduleQueue pending; // trains not yet dispatched, while dispatch is running
+	private List<Schedule> blocked = new ArrayList<Schedule>(); // ready trains with no route until the tracks change
+	private int conflicts; // edge reservations that had to wait for another train
+	private Simulation live; // reads the graph's reservations as they change; rebuilt when the tracks change
+	private CongestionStats congestion; // if set, learned congestion is added to routing costs
+
 	public ImprovedDispatch(MyGraph g) {
 		super(g);
 	}
+
+	public ImprovedDispatch(MyGraph g, boolean display) {
+		super(g, display);
+	}
+
+	/**
+	 * Dispatch trains in rolling-horizon windows instead of one at a time
+	 * @param planner - planner to order each window, or null for greedy dispatch
+	 */
+	public void setPlanner(RollingHorizonPlanner planner) {
+		this.planner = planner;
+	}
 	
+	/**
+	 * Before reserving a train, simulate each of its candidate routes followed by the
+	 * trains released within the horizon, and keep the route with the lowest total cost
+	 * @param horizon - how far ahead to simulate, 0 to take the best route greedily
+	 */
+	public void setLookahead(int horizon) {
+		this.lookahead = horizon;
+	}
+
+	/**
+	 * Route around edges that have been congested, learning as trains clear them
+	 * @param congestion - statistics to learn into and route by, or null to route on weights alone
+	 */
+	public void setCongestion(CongestionStats congestion) {
+		this.congestion = congestion;
+	}
+
+	/**
+	 * @return the number of edges trains could not enter when they reached them, because
+	 * earlier reservations had the edge full
+	 */
+	public int getConflicts() {
+		return conflicts;
+	}
+
 	/**
      * Improved Run of train dispatch
      * @param filename - name of the schedule file. only used for testing
@@ -24,78 +73,385 @@ public class ImprovedDispatch extends TrainDispatch {
      */
 	@Override
 	public void dispatch(String filename) throws FileNotFoundException {
-	    PriorityQueue<Schedule> scheduleQueue = Schedule.loadTrainsfromFile(graph, filename); // determines in what order trains should be dispatched
+	    // determines in what order trains should be dispatched: by priority class, then dispatch time
+	    ScheduleQueue scheduleQueue = new ScheduleQueue(Schedule.loadTrainsfromFile(graph, filename));
+	    pending = scheduleQueue;
 	    
-	    while(!scheduleQueue.isEmpty()) {
-	    	Schedule next = scheduleQueue.peek();
-	    	// if the next train to be dispatched is not yet ready, increment time and continue
-	    	if (next.getDispatchTime() > globalTime) {
+	    while(!scheduleQueue.isEmpty() || !blocked.isEmpty()) {
+	    	if (!changesPending()) { retryBlocked(); } // a change that opened nothing leaves no reason to wait
+	    	Schedule next = scheduleQueue.peekReady(globalTime);
+	    	// if no train is ready to be dispatched, increment time and continue
+	    	if (next == null) {
+	    		timeTravel();
+	    		continue;
+	    	}
+	    	// plan every train in the window together, then move on to the next tick
+	    	if (planner != null) {
+	    		dispatchWindow(scheduleQueue);
 	    		timeTravel();
 	    		continue;
 	    	}
-	    	Dijkstra d = new Dijkstra(next.getSource());
-	    	d.computeAllPaths(globalTime);
-	    	
-		    List<Edge> path = d.getEdgePath(next.getDestination());
-		    List<Node> nodePath = d.getShortestPathTo(next.getDestination());
-
-		    if (!path.isEmpty()) {
-		    	// Reserve all edges in the path and add these edges to the map
-		        // keep track of the schedule's personal reservations for each edge
-		    	
-		    	List<Integer> myReservations = new ArrayList<Integer>();
-		        
-		        int reserve;
-		        int arrival = globalTime;
-		        for(int i = 0; i < path.size(); i++) {
-		        	Edge edge = path.get(i);
-		        	// reset and check availability of edge
-		        	edge.setAttribute("available", arrival);
-		        	Dijkstra.checkReservations(edge, arrival);
-
-		        	reserve = edge.getAttribute("available"); // time of reservation
-		        	
-		        	List<Integer> reservations = edge.getAttribute("reservations");
-		        	makeReservation(reservations, reserve);
-		        	myReservations.add(reserve);
-
-		        	// train arrives at the end of path at previous arrival + time of delay + weight of edge
-		        	arrival += (reserve - arrival) + (int)edge.getAttribute("weight");
-		        }
-		        
-
-		        Sprite sprite = addSprite(next, path, nodePath);
-		        sprite.addAttribute("reservations", myReservations);
-		        
-		        // if the sprite must wait, mark delayed, otherwise lock its first edge
-		        if (myReservations.get(0) != globalTime) { 
-		        	sprite.setAttribute("ui.class", "delayed"); 
-		        } else {
-		        	sprite.setAttribute("ui.class", "moving");
-		        	path.get(0).setAttribute("ui.class", "locked");
-		        }
+	    	Sprite sprite = dispatchTrain(next);
 
+		    if (sprite != null) {
 		        // this train has been dispatched; remove from queue
-		        System.out.println("Dispatching " + scheduleQueue.poll() + " on train " + sprite.getId() + " at " + globalTime);
+		        System.out.println("Dispatching " + scheduleQueue.pollReady(globalTime) + " on train " + sprite.getId() + " at " + globalTime);
+		    } else if (changesPending()) {
+		        // no open track reaches the destination yet; let the trains behind it go until the tracks change
+		        blocked.add(scheduleQueue.pollReady(globalTime));
+		    } else {
+		        // no open track reaches the destination and none is coming; waiting will never help
+		        System.out.println("No route for " + scheduleQueue.pollReady(globalTime));
 		    }
 		    // only move forward in time if there are no more trains that can be dispatched at the current time
-		    if (scheduleQueue.isEmpty() || scheduleQueue.peek().getDispatchTime() > globalTime || path.isEmpty()) {
+		    if (scheduleQueue.peekReady(globalTime) == null) {
 		    	timeTravel();
 		    }
 	    }
 	    
+	    pending = null;
+	    
 	    while (hasLocked() || hasDelayed()) {
 	    	timeTravel();
 	    }
 	    
 	}
 
+	/**
+	 * Take every train released within the planner's horizon off the queue,
+	 * plan them together, and reserve their paths in the planned order.
+	 * Trains released after globalTime wait on their first edge until their reservation.
+	 * Trains without a path are put back on the queue while changes to the tracks are
+	 * still to come.
+	 * @param scheduleQueue - trains not yet dispatched
+	 */
+	private void dispatchWindow(ScheduleQueue scheduleQueue) {
+		List<Schedule> batch = new ArrayList<Schedule>();
+		Schedule next;
+		while ((next = scheduleQueue.pollReady(globalTime + planner.getHorizon())) != null) {
+			batch.add(next);
+		}
+
+		RollingHorizonPlanner.Plan plan = planner.plan(graph, batch, globalTime);
+		System.out.println("Planned " + batch.size() + " trains at " + globalTime + ": cost " + plan.totalCost + " (greedy " + plan.greedyCost + ")");
+
+		for (int i = 0; i < plan.order.size(); i++) {
+			next = plan.order.get(i);
+			List<Edge> path = plan.paths.get(i);
+			if (path.isEmpty()) {
+				if (changesPending()) {
+					scheduleQueue.add(next);
+				} else {
+					System.out.println("No route for " + next);
+				}
+				continue;
+			}
+			Sprite sprite = reservePath(next, path, plan.nodePaths.get(i), Math.max(globalTime, next.getDispatchTime()));
+			System.out.println("Dispatching " + next + " on train " + sprite.getId() + " at " + globalTime);
+		}
+	}
+
+	/**
+	 * Route a ready train considering locked and unlocked paths, and reserve its path
+	 * @param next - train to dispatch at globalTime
+	 * @return the sprite of the train, or null if there is no path
+	 */
+	protected Sprite dispatchTrain(Schedule next) {
+		Dijkstra d = new Dijkstra(next.getSource());
+		d.setCongestion(congestion);
+		d.computeAllPaths(globalTime);
+
+		List<Edge> path = d.getEdgePath(next.getDestination());
+		List<Node> nodePath = d.getShortestPathTo(next.getDestination());
+
+		if (path.isEmpty()) { return null; }
+		if (lookahead > 0) {
+			List<Edge> best = lookAhead(next, path);
+			if (best != path) {
+				path = best;
+				nodePath = new ArrayList<Node>();
+				nodePath.add(next.getSource());
+				for (Edge edge : path) { nodePath.add(edge.getOpposite(nodePath.get(nodePath.size() - 1))); }
+			}
+		}
+		return reservePath(next, path, nodePath, globalTime);
+	}
+
+	/**
+	 * Compare the greedy path with the train's cached alternative routes. Each candidate
+	 * is reserved on its own fork of the current reservations, then the trains released
+	 * within the look-ahead horizon are routed greedily behind it. Candidates are
+	 * simulated in parallel.
+	 * @param next - train to dispatch at globalTime
+	 * @param greedy - path the greedy search chose
+	 * @return the path with the lowest total cost; greedy if nothing beats it
+	 */
+	private List<Edge> lookAhead(Schedule next, List<Edge> greedy) {
+		List<List<Edge>> candidates = new ArrayList<List<Edge>>();
+		candidates.add(greedy);
+		for (AlternativeRoutes.Route route : routes.getRoutes(next.getSource(), next.getDestination())) {
+			if (!route.getEdges().equals(greedy)) { candidates.add(route.getEdges()); }
+		}
+		if (candidates.size() == 1) { return greedy; }
+
+		List<Schedule> followers = new ArrayList<Schedule>();
+		if (pending != null) {
+			for (Schedule train : pending.upcoming(globalTime + lookahead)) {
+				if (train != next) { followers.add(train); }
+			}
+		}
+
+		Simulation now = simulation();
+		int[] costs = IntStream.range(0, candidates.size()).parallel().map(i -> {
+			Simulation fork = now.fork();
+			int[] path = new int[candidates.get(i).size()];
+			for (int e = 0; e < path.length; e++) { path[e] = candidates.get(i).get(e).getIndex(); }
+			int cost = fork.reserve(path, globalTime) - next.getDispatchTime();
+
+			for (Schedule train : followers) {
+				int start = Math.max(globalTime, train.getDispatchTime());
+				int[] route = fork.route(train.getSource().getIndex(), train.getDestination().getIndex(), start);
+				if (route.length > 0) { cost += fork.reserve(route, start) - train.getDispatchTime(); }
+			}
+			return cost;
+		}).toArray();
+
+		int best = 0;
+		for (int i = 1; i < costs.length; i++) {
+			if (costs[i] < costs[best]) { best = i; }
+		}
+		return candidates.get(best);
+	}
+
+	/**
+	 * Reserve all edges in the path and add these edges to the map,
+	 * then add the train's sprite
+	 * @param next - train to reserve for
+	 * @param path - path the train will take
+	 * @param nodePath - nodes along the path
+	 * @param start - time the train is ready at its source
+	 * @return the sprite of the train
+	 */
+	protected Sprite reservePath(Schedule next, List<Edge> path, List<Node> nodePath, int start) {
+		// keep track of the schedule's personal reservations for each edge
+		List<Integer> myReservations = reserve(path, start);
+
+		Sprite sprite = addSprite(next, path, nodePath);
+		sprite.addAttribute("reservations", myReservations);
+		sprite.addAttribute("readyAt", start);
+
+		recordDispatch(sprite, next, myReservations.get(0) - start);
+
+		// if the sprite must wait, mark delayed, otherwise lock its first edge
+		if (myReservations.get(0) != globalTime) {
+			sprite.setAttribute("ui.class", "delayed");
+			recordState(sprite, "delayed");
+		} else {
+			sprite.setAttribute("ui.class", "moving");
+			occupy(path.get(0));
+			recordState(sprite, "moving");
+		}
+		return sprite;
+	}
+
+	/**
+	 * Reserve every edge of a path in turn
+	 * @param path - path the train will take
+	 * @param start - time the train is ready at the start of the path
+	 * @return the time the train enters each edge
+	 */
+	private List<Integer> reserve(List<Edge> path, int start) {
+		List<Integer> myReservations = new ArrayList<Integer>();
+
+		int reserve;
+		int arrival = start;
+		for(int i = 0; i < path.size(); i++) {
+			Edge edge = path.get(i);
+			// reset and check availability of edge
+			edge.setAttribute("available", arrival);
+			Dijkstra.checkReservations(edge, arrival);
+
+			reserve = edge.getAttribute("available"); // time of reservation
+			if (reserve > arrival) { conflicts++; }
+
+			List<Integer> reservations = edge.getAttribute("reservations");
+			makeReservation(reservations, reserve);
+			myReservations.add(reserve);
+			reservedEdges.add(edge);
+
+			// train arrives at the end of path at previous arrival + time of delay + weight of edge
+			arrival += (reserve - arrival) + (int)edge.getAttribute("weight");
+		}
+		return myReservations;
+	}
+
+	/**
+	 * Record a train reaching the end of an edge in the congestion statistics.
+	 * Wait is the time between reaching the start of the edge and the reservation to
+	 * enter it; load counts the other trains holding the edge or reserved on it from now on.
+	 * @param sprite - train leaving the edge, still counted in its occupancy
+	 * @param edge - edge the train leaves
+	 */
+	protected void cleared(Sprite sprite, Edge edge) {
+		if (congestion == null) { return; }
+		int ahead = 0;
+		for (int reservation : edge.<List<Integer>>getAttribute("reservations")) {
+			if (reservation >= globalTime) { ahead++; }
+		}
+		double load = ((int)edge.getAttribute("occupancy") - 1 + ahead) / (double)(int)edge.getAttribute("capacity");
+		int waited = sprite.<List<Integer>>getAttribute("reservations").get(0) - sprite.<Integer>getAttribute("readyAt");
+		congestion.observe(edge, waited, load);
+		sprite.setAttribute("readyAt", globalTime); // the train reached the start of its next edge now
+	}
+
+	/**
+	 * A delayed train has not entered its current edge yet, so that edge counts as
+	 * ahead of it. A re-weighted edge also affects the trains on it, since their
+	 * reservations further on assume the old weight.
+	 */
+	@Override
+	protected List<Sprite> trainsRoutedOver(Edge edge, boolean onEdge) {
+		List<Sprite> trains = new ArrayList<Sprite>();
+		for (Sprite sprite : sman) {
+			List<Edge> path = sprite.getAttribute("path");
+			int at = path.indexOf(sprite.getAttachment());
+			boolean entered = sprite.getAttribute("ui.class") != "delayed";
+			if (path.subList(entered ? at + 1 : at, path.size()).contains(edge)
+					|| (onEdge && entered && path.get(at) == edge)) {
+				trains.add(sprite);
+			}
+		}
+		return trains;
+	}
+
+	/**
+	 * Reservations of trains that have already left the edge would be read with the new
+	 * weight and look longer or shorter than they were, so they are dropped first
+	 */
+	@Override
+	public void setTrackWeight(Edge edge, int weight) {
+		int old = edge.getAttribute("weight");
+		edge.<List<Integer>>getAttribute("reservations").removeIf(reservation -> reservation + old <= globalTime);
+		super.setTrackWeight(edge, weight);
+	}
+
+	/**
+	 * Edges stay in use while they hold a train or a reservation that has not expired
+	 */
+	@Override
+	protected boolean inUse(Edge edge) {
+		// reservations are sorted, and expired ones stay in the list until the next sweep
+		List<Integer> reservations = edge.getAttribute("reservations");
+		return super.inUse(edge) || (!reservations.isEmpty()
+				&& reservations.get(reservations.size() - 1) + (int)edge.getAttribute("weight") > globalTime);
+	}
+
+	/**
+	 * Cancel the train's reservations ahead and reserve again from where it will be
+	 * free to choose: the end of its current edge, or for a delayed train the node it
+	 * waits at. A moving train does not turn back over its current edge. If there is
+	 * no other route, the old one is reserved again.
+	 */
+	@Override
+	protected void reroute(Sprite sprite) {
+		Schedule schedule = sprite.getAttribute("schedule");
+		List<Edge> path = sprite.getAttribute("path");
+		List<Integer> myReservations = sprite.getAttribute("reservations");
+		Edge current = (Edge)sprite.getAttachment();
+		int at = path.indexOf(current);
+		boolean delayed = sprite.getAttribute("ui.class") == "delayed";
+
+		int keep = delayed ? 0 : 1; // a moving train keeps its current edge
+		List<Edge> ahead = new ArrayList<Edge>(path.subList(at + keep, path.size()));
+		for (int i = 0; i < ahead.size(); i++) {
+			List<Integer> reservations = ahead.get(i).getAttribute("reservations");
+			reservations.remove(myReservations.get(i + keep));
+		}
+
+		Node from;
+		int start;
+		if (delayed) {
+			from = sprite.hasAttribute("fromSource") ? current.getSourceNode() : current.getTargetNode();
+			start = globalTime;
+		} else {
+			from = getCurrentNode(sprite, current);
+			start = endOfEdge(sprite);
+			// the edge's weight may have changed under the train; its interval must still end when it leaves
+			int entered = myReservations.get(0);
+			int entry = start - (int)current.getAttribute("weight");
+			if (entry != entered) {
+				List<Integer> reservations = current.getAttribute("reservations");
+				reservations.remove((Integer)entered);
+				makeReservation(reservations, entry);
+				myReservations.set(0, entry);
+				sprite.setAttribute("readyAt", sprite.<Integer>getAttribute("readyAt") + entry - entered); // same wait
+			}
+		}
+		Simulation state = simulation();
+		int[] route = state.route(from.getIndex(), schedule.getDestination().getIndex(), start, delayed ? -1 : current.getIndex());
+		List<Edge> rest = new ArrayList<Edge>();
+		for (int e : route) { rest.add(state.getEdge(e)); }
+		if (rest.isEmpty()) { rest = ahead; }
+
+		List<Integer> times = reserve(rest, start);
+		path.clear();
+		myReservations.subList(keep, myReservations.size()).clear();
+		if (!delayed) { path.add(current); }
+		path.addAll(rest);
+		myReservations.addAll(times);
+
+		if (delayed) {
+			sprite.attachToEdge(rest.get(0).getId());
+			setDirection(sprite, from, rest.get(0));
+			if (times.get(0) == globalTime) {
+				sprite.setAttribute("ui.class", "moving");
+				occupy(rest.get(0));
+				recordState(sprite, "moving");
+			}
+		}
+	}
+
+	/**
+	 * @return a simulation of the current reservations to fork from
+	 */
+	private Simulation simulation() {
+		if (live == null) { live = Simulation.of(graph); }
+		return live;
+	}
+
+	@Override
+	protected void tracksChanged() {
+		live = null;
+		retryBlocked();
+	}
+
+	/**
+	 * Put the trains that had no route back on the queue, to be tried again at once
+	 */
+	private void retryBlocked() {
+		if (pending == null) { return; }
+		for (Schedule train : blocked) { pending.add(train); }
+		blocked.clear();
+	}
+
+	/**
+	 * @return the time a moving train reaches the end of its current edge
+	 */
+	protected int endOfEdge(Sprite sprite) {
+		Edge edge = (Edge)sprite.getAttachment();
+		int location = sprite.getAttribute("location");
+		if (sprite.hasAttribute("fromSource")) {
+			return globalTime + Math.max(1, (int)edge.getAttribute("weight") - location);
+		}
+		return globalTime + Math.max(1, location);
+	}
+
 	/**
 	 * Insert the reservation in place
 	 * @param reservations - list of reservations on that edge
 	 * @param reserve - time to reserve at
 	 */
-	private void makeReservation(List<Integer> reservations, int reserve) {
+	static void makeReservation(List<Integer> reservations, int reserve) {
 		for (int i = 0; i < reservations.size(); i++) {
 			if(reservations.get(i) > reserve) {
 				reservations.add(i, reserve);
@@ -109,7 +465,7 @@ public class ImprovedDispatch extends TrainDispatch {
 	 * Checks if there are any delayed trains
 	 * @return true if trains are delayed
 	 */
-	private boolean hasDelayed() {
+	protected boolean hasDelayed() {
 		for(Sprite sprite : sman) {
 			if(sprite.getAttribute("ui.class") == "delayed") { return true; }
 		}
@@ -159,7 +515,8 @@ public class ImprovedDispatch extends TrainDispatch {
 				Edge lastEdge = (Edge)sprite.getAttachment();
 
 				if(atEndEdge(sprite)) {
-					lastEdge.setAttribute("ui.class", "unlocked"); // unlock edge
+					cleared(sprite, lastEdge);
+					release(lastEdge); // unlock edge
 
 					// remove the sprite's reservation on that edge
 					List<Integer> myReservations = sprite.getAttribute("reservations");
@@ -174,13 +531,15 @@ public class ImprovedDispatch extends TrainDispatch {
 						setDirection(sprite, getCurrentNode(sprite, lastEdge), (Edge)sprite.getAttachment());
 						if (myReservations.get(0) == globalTime) {
 							// attach and lock the next edge
-							next.addAttribute("ui.class", "locked");
+							occupy(next);
 						} else {
 							sprite.setAttribute("ui.class", "delayed");
+							recordState(sprite, "delayed");
 						}
 
 					} else {
 						getTrainCost(sprite);
+						recordState(sprite, "arrived");
 						toRemove.add(sprite);
 					}
 				} else {
@@ -197,7 +556,8 @@ public class ImprovedDispatch extends TrainDispatch {
 				if (reservations.get(0) == globalTime) { 
 					sprite.setAttribute("ui.class", "moving"); 
 					// attach and lock the edge
-					lastEdge.setAttribute("ui.class", "locked");
+					occupy(lastEdge);
+					recordState(sprite, "moving");
 				}
 			}
 		}
@@ -206,6 +566,31 @@ public class ImprovedDispatch extends TrainDispatch {
 		for(Sprite sprite : toRemove) {
 			sman.removeSprite(sprite.getId());
 		}
+
+		expireReservations();
+	}
+
+	/**
+	 * Drop reservations whose train has already left the edge.
+	 * No train can arrive before globalTime, so a reservation that ended before it
+	 * can never conflict again. Reservations are sorted, so only the front of each
+	 * list is checked, and only edges that still have reservations are visited.
+	 */
+	protected void expireReservations() {
+		Iterator<Edge> it = reservedEdges.iterator();
+		while (it.hasNext()) {
+			Edge edge = it.next();
+			List<Integer> reservations = edge.getAttribute("reservations");
+			int weight = edge.getAttribute("weight");
+
+			int expired = 0;
+			while (expired < reservations.size() && reservations.get(expired) + weight < globalTime) {
+				expired++;
+			}
+			reservations.subList(0, expired).clear();
+
+			if (reservations.isEmpty()) { it.remove(); }
+		}
 	}
 	
 }
@@ -0,0 +1,225 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+import org.graphstream.graph.Edge;
+import org.graphstream.graph.Node;
+
+/**
+ * Delta-stepping shortest paths, run on a ForkJoinPool so one large query can use
+ * every core.
+ *
+ * Nodes are kept in buckets of width delta by tentative distance. The lowest bucket
+ * is emptied in phases: all of its nodes relax their light edges (weight at most
+ * delta) in parallel, which may refill it, and once it stays empty the nodes settled
+ * in it relax their heavy edges in parallel. A distance is lowered with a
+ * compare-and-set, so workers never lock each other out.
+ *
+ * Distances are the same as computeUnlockedPaths. previous is rebuilt from them
+ * afterwards with the rule the sequential search follows: of the neighbours on a
+ * shortest route, the one closest to the source. Where two such neighbours are
+ * equally close, the sequential search picks by queue order and this one picks the
+ * lower node index.
+ *
+ * A width of 1 behaves like Dijkstra; a width as large as the longest route behaves
+ * like Bellman-Ford.
+ */
+public class ParallelDijkstra extends Dijkstra {
+	private int delta;     // bucket width
+	private ForkJoinPool pool;
+
+	// snapshot of the graph, rebuilt for every query
+	private Node[] nodes;
+	private int[] weight;
+	private int[] endA;    // the two nodes of each edge
+	private int[] endB;
+	private int[][] adjacent; // unlocked edge indices leaving each node
+
+	public ParallelDijkstra(Node source, int delta) {
+		this(source, delta, ForkJoinPool.commonPool());
+	}
+
+	public ParallelDijkstra(Node source, int delta, ForkJoinPool pool) {
+		super(source);
+		this.delta = Math.max(1, delta);
+		this.pool = pool;
+	}
+
+	/**
+	 * Compute shortest paths looking only at unlocked edges, in parallel
+	 */
+	@Override
+	public void computeUnlockedPaths() {
+		DispatchEvents.DijkstraRun event = new DispatchEvents.DijkstraRun();
+		event.begin();
+
+		snapshot();
+		int s = source.getIndex();
+		AtomicIntegerArray distance = new AtomicIntegerArray(nodes.length);
+		for (int i = 0; i < nodes.length; i++) { distance.set(i, Integer.MAX_VALUE); }
+		distance.set(s, 0);
+
+		TreeMap<Integer, List<Integer>> buckets = new TreeMap<Integer, List<Integer>>(); // bucket -> nodes, may hold stale entries
+		add(buckets, s, 0);
+		int settled = 0;
+		int relaxed = 0;
+
+		while (!buckets.isEmpty()) {
+			int bucket = buckets.firstKey();
+			List<Integer> settledHere = new ArrayList<Integer>();
+			boolean[] inBucket = new boolean[nodes.length];
+
+			// light edges can put nodes back into this bucket, so repeat until it stays empty
+			while (buckets.containsKey(bucket)) {
+				int[] frontier = current(buckets.remove(bucket), distance, bucket);
+				for (int node : frontier) {
+					if (!inBucket[node]) {
+						inBucket[node] = true;
+						settledHere.add(node);
+						settled++;
+					}
+				}
+				relaxed += relax(frontier, true, distance, buckets);
+			}
+			int[] heavy = new int[settledHere.size()];
+			for (int i = 0; i < heavy.length; i++) { heavy[i] = settledHere.get(i); }
+			relaxed += relax(heavy, false, distance, buckets);
+		}
+
+		// write back the same attributes computeUnlockedPaths sets
+		int[] previous = previous(distance);
+		for (Node node : nodes) {
+			node.addAttribute("minDistance", distance.get(node.getIndex()));
+			node.addAttribute("ui.label", node.getId());
+			if (previous[node.getIndex()] >= 0) {
+				node.addAttribute("previous", nodes[previous[node.getIndex()]]);
+			} else {
+				node.removeAttribute("previous");
+			}
+		}
+
+		if (event.shouldCommit()) {
+			event.source = source.getId();
+			event.mode = "unlocked, delta " + delta;
+			event.nodesSettled = settled;
+			event.edgesRelaxed = relaxed;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Drop stale and repeated entries from a bucket's nodes
+	 * @return the nodes whose distance still falls in the bucket
+	 */
+	private int[] current(List<Integer> entries, AtomicIntegerArray distance, int bucket) {
+		LinkedHashSet<Integer> frontier = new LinkedHashSet<Integer>();
+		for (int node : entries) {
+			if (distance.get(node) / delta == bucket) { frontier.add(node); }
+		}
+		int[] toReturn = new int[frontier.size()];
+		int i = 0;
+		for (int node : frontier) { toReturn[i++] = node; }
+		return toReturn;
+	}
+
+	/**
+	 * Relax the light or heavy edges of every node in frontier in parallel, then put
+	 * each improved node into its new bucket
+	 * @return the number of edges examined
+	 */
+	private int relax(int[] frontier, boolean light, AtomicIntegerArray distance, TreeMap<Integer, List<Integer>> buckets) {
+		int[][] improved = pool.submit(() -> IntStream.of(frontier).parallel().mapToObj(node -> {
+			int[] found = new int[adjacent[node].length];
+			int count = 0;
+			int from = distance.get(node);
+			for (int e : adjacent[node]) {
+				if ((weight[e] <= delta) != light) { continue; }
+				int other = endA[e] == node ? endB[e] : endA[e];
+				int through = from + weight[e];
+				int current = distance.get(other);
+				while (through < current) {
+					if (distance.compareAndSet(other, current, through)) {
+						found[count++] = other;
+						break;
+					}
+					current = distance.get(other);
+				}
+			}
+			return Arrays.copyOf(found, count);
+		}).toArray(int[][]::new)).join();
+
+		int examined = 0;
+		for (int node : frontier) { examined += adjacent[node].length; }
+		for (int[] nodesFound : improved) {
+			for (int node : nodesFound) { add(buckets, node, distance.get(node)); }
+		}
+		return examined;
+	}
+
+	private void add(TreeMap<Integer, List<Integer>> buckets, int node, int distance) {
+		List<Integer> bucket = buckets.get(distance / delta);
+		if (bucket == null) {
+			bucket = new ArrayList<Integer>();
+			buckets.put(distance / delta, bucket);
+		}
+		bucket.add(node);
+	}
+
+	/**
+	 * For each reached node, pick the neighbour on a shortest route that is closest
+	 * to the source, lowest index first
+	 * @return index of the previous node of each node, -1 for the source and unreached nodes
+	 */
+	private int[] previous(AtomicIntegerArray distance) {
+		int[] previous = new int[nodes.length];
+		int s = source.getIndex();
+		pool.submit(() -> IntStream.range(0, nodes.length).parallel().forEach(node -> {
+			previous[node] = -1;
+			if (node == s || distance.get(node) == Integer.MAX_VALUE) { return; }
+			for (int e : adjacent[node]) {
+				int other = endA[e] == node ? endB[e] : endA[e];
+				if (distance.get(other) == Integer.MAX_VALUE || distance.get(other) + weight[e] != distance.get(node)) { continue; }
+				if (previous[node] < 0 || distance.get(other) < distance.get(previous[node])
+						|| (distance.get(other) == distance.get(previous[node]) && other < previous[node])) {
+					previous[node] = other;
+				}
+			}
+		})).join();
+		return previous;
+	}
+
+	/**
+	 * Copy weights and unlocked adjacency out of the graph
+	 */
+	private void snapshot() {
+		int edgeCount = source.getGraph().getEdgeCount();
+		nodes = new Node[source.getGraph().getNodeCount()];
+		weight = new int[edgeCount];
+		endA = new int[edgeCount];
+		endB = new int[edgeCount];
+		adjacent = new int[nodes.length][];
+
+		for (Edge edge : source.getGraph().getEachEdge()) {
+			weight[edge.getIndex()] = edge.getAttribute("weight");
+			endA[edge.getIndex()] = edge.getSourceNode().getIndex();
+			endB[edge.getIndex()] = edge.getTargetNode().getIndex();
+		}
+		for (Node node : source.getGraph()) {
+			nodes[node.getIndex()] = node;
+			List<Edge> list = getAdjacencies(node);
+			int[] unlocked = new int[list.size()];
+			int count = 0;
+			for (Edge edge : list) {
+				if (edge.getAttribute("ui.class") != "locked") { unlocked[count++] = edge.getIndex(); }
+			}
+			adjacent[node.getIndex()] = Arrays.copyOf(unlocked, count);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.graphstream.graph.Edge;
+import org.graphstream.graph.Node;
+
+import graph.MyGraph;
+import schedule.Schedule;
+
+/**
+ * Rolling-horizon planner for the improved dispatcher.
+ *
+ * Trains released within the horizon are planned together. Each worker thread
+ * builds dispatch orders from randomised priorities, routes every train in that
+ * order against a private copy of the edge reservations, and keeps the order with
+ * the lowest total cost. The dispatch-time order is always tried first, so the
+ * chosen plan is never worse than dispatching greedily. Orders only shuffle trains
+ * within a priority class; more important classes always go first.
+ *
+ * The search works on forks of a Simulation snapshot, so it never writes the node
+ * and edge attributes used by Dijkstra and the display.
+ */
+public class RollingHorizonPlanner {
+	private int horizon;       // trains released up to globalTime + horizon are planned together
+	private long budgetMillis; // time allowed to search for a better order
+	private int threads;       // number of workers searching in parallel
+	private ExecutorService pool;
+
+	private Simulation snapshot; // reservations of the graph, taken for every window
+
+	public RollingHorizonPlanner(int horizon, long budgetMillis, int threads) {
+		this.horizon = horizon;
+		this.budgetMillis = budgetMillis;
+		this.threads = Math.max(1, threads);
+		this.pool = Executors.newFixedThreadPool(this.threads, r -> {
+			Thread thread = new Thread(r, "planner");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public int getHorizon() {
+		return horizon;
+	}
+
+	/**
+	 * Search for the dispatch order of the batch with the lowest total cost
+	 * @param graph - graph holding the current reservations
+	 * @param batch - trains to plan, by priority class then dispatch time
+	 * @param globalTime - current time; no train starts before it
+	 * @return the best plan found within the time budget
+	 */
+	public Plan plan(MyGraph graph, List<Schedule> batch, int globalTime) {
+		snapshot = Simulation.of(graph);
+
+		int[] source = new int[batch.size()];
+		int[] destination = new int[batch.size()];
+		int[] release = new int[batch.size()];
+		int[] priorityClass = new int[batch.size()];
+		for (int i = 0; i < batch.size(); i++) {
+			priorityClass[i] = batch.get(i).getPriority();
+			source[i] = batch.get(i).getSource().getIndex();
+			destination[i] = batch.get(i).getDestination().getIndex();
+			release[i] = batch.get(i).getDispatchTime();
+		}
+
+		Integer[] greedyOrder = new Integer[batch.size()];
+		for (int i = 0; i < greedyOrder.length; i++) { greedyOrder[i] = i; }
+		Candidate greedy = evaluate(greedyOrder, source, destination, release, globalTime);
+		Candidate best = greedy;
+
+		// nothing to reorder
+		if (batch.size() > 1 && budgetMillis > 0) {
+			long deadline = System.nanoTime() + budgetMillis * 1000000L;
+			long seed = Long.getLong("seed", System.nanoTime());
+
+			List<Future<Candidate>> results = new ArrayList<Future<Candidate>>();
+			for (int t = 0; t < threads; t++) {
+				Random rand = new Random(seed + t);
+				results.add(pool.submit(new Callable<Candidate>() {
+					@Override
+					public Candidate call() {
+						return search(rand, deadline, source, destination, release, priorityClass, globalTime);
+					}
+				}));
+			}
+			for (Future<Candidate> result : results) {
+				try {
+					Candidate found = result.get();
+					if (found != null && found.cost < best.cost) { best = found; }
+				} catch (Exception e) {
+					// a failed worker only loses its candidates
+				}
+			}
+		}
+
+		Plan plan = new Plan();
+		plan.greedyCost = greedy.cost;
+		plan.totalCost = best.cost;
+		for (int i = 0; i < best.order.length; i++) {
+			plan.order.add(batch.get(best.order[i]));
+			List<Edge> path = new ArrayList<Edge>();
+			List<Node> nodePath = new ArrayList<Node>();
+			int at = source[best.order[i]];
+			if (best.paths[i].length > 0) { nodePath.add(snapshot.getNode(at)); }
+			for (int e : best.paths[i]) {
+				path.add(snapshot.getEdge(e));
+				at = snapshot.opposite(e, at);
+				nodePath.add(snapshot.getNode(at));
+			}
+			plan.paths.add(path);
+			plan.nodePaths.add(nodePath);
+		}
+		return plan;
+	}
+
+	/**
+	 * Worker loop: try randomised priorities until the deadline
+	 * @return the cheapest candidate this worker found
+	 */
+	private Candidate search(Random rand, long deadline, int[] source, int[] destination, int[] release,
+			int[] priorityClass, int globalTime) {
+		Candidate best = null;
+		Integer[] order = new Integer[release.length];
+		double[] priority = new double[release.length];
+
+		while (System.nanoTime() < deadline) {
+			// priority is the release time pushed back by up to the horizon,
+			// so trains only trade places with trains released near them
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+				priority[i] = release[i] + rand.nextDouble() * (horizon + 1);
+			}
+			Arrays.sort(order, Comparator.comparingInt((Integer i) -> priorityClass[i]).thenComparingDouble(i -> priority[i]));
+
+			Candidate candidate = evaluate(order.clone(), source, destination, release, globalTime);
+			if (best == null || candidate.cost < best.cost) { best = candidate; }
+		}
+		return best;
+	}
+
+	/**
+	 * Route and reserve every train in order on a fork of the snapshot
+	 * @return the order, the path of each train and the total cost
+	 */
+	private Candidate evaluate(Integer[] order, int[] source, int[] destination, int[] release, int globalTime) {
+		Simulation fork = snapshot.fork();
+		Candidate candidate = new Candidate();
+		candidate.order = order;
+		candidate.paths = new int[order.length][];
+
+		for (int i = 0; i < order.length; i++) {
+			int train = order[i];
+			int start = Math.max(globalTime, release[train]);
+			int[] path = fork.route(source[train], destination[train], start);
+			candidate.paths[i] = path;
+			if (path.length == 0) { continue; }
+			candidate.cost += fork.reserve(path, start) - release[train];
+		}
+		return candidate;
+	}
+
+	/**
+	 * A dispatch order with the path of every train
+	 */
+	public static class Plan {
+		public List<Schedule> order = new ArrayList<Schedule>();
+		public List<List<Edge>> paths = new ArrayList<List<Edge>>();
+		public List<List<Node>> nodePaths = new ArrayList<List<Node>>();
+		public int totalCost;
+		public int greedyCost; // cost of the same window in dispatch time order
+	}
+
+	private static class Candidate {
+		Integer[] order;
+		int[][] paths;
+		int cost;
+	}
+}
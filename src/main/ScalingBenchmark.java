@@ -0,0 +1,307 @@
+package main;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import graph.MyGraph;
+
+/**
+ * Runs headless dispatch for each dispatcher over a grid of network and demand sizes
+ * and reports how time, throughput, memory and cost scale.
+ *
+ * Run in src: java -cp "*:." main.ScalingBenchmark [key=value ...]
+ * Keys, each a comma separated list unless noted:
+ *  nodes        - node counts (default 20,40,80)
+ *  connections  - random edges per node on top of a spanning tree (default 1,2)
+ *  trains       - trains per schedule (default 50,100,200)
+ *  patterns     - uniform, sourceDense, destinationDense, sourceDestDense, timeDense (default all)
+ *  dispatchers  - base, improved, agent (default base,improved)
+ *  maxTime      - latest dispatch time, single value (default 50)
+ *  delta        - bucket width for parallel delta-stepping searches in the base
+ *                 dispatcher, single value (default 0, sequential Dijkstra)
+ *  congestion   - weights of learned wait and load in the improved and agent
+ *                 dispatchers' routing costs, a single pair such as 1,0
+ *                 (default none, route on weights alone)
+ *  seed         - random seed, single value (default 1)
+ *  report       - csv file to write the results to, single value (default none)
+ *
+ * The graphs and schedules of the grid are written to a temporary directory.
+ */
+public class ScalingBenchmark {
+	private static final String[] PATTERNS = { "uniform", "sourceDense", "destinationDense", "sourceDestDense", "timeDense" };
+	private static final double HOT_SHARE = 0.15; // share of trains using the hot node in a dense pattern
+	private static final double DENSE_TIME = 0.4; // share of the time window a time dense schedule uses
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			String[] pair = arg.split("=", 2);
+			options.put(pair[0], pair[1]);
+		}
+		int[] nodeCounts = ints(options.getOrDefault("nodes", "20,40,80"));
+		int[] connections = ints(options.getOrDefault("connections", "1,2"));
+		int[] trainCounts = ints(options.getOrDefault("trains", "50,100,200"));
+		String[] patterns = options.containsKey("patterns") ? options.get("patterns").split(",") : PATTERNS;
+		String[] dispatchers = options.getOrDefault("dispatchers", "base,improved").split(",");
+		int maxTime = Integer.parseInt(options.getOrDefault("maxTime", "50"));
+		int delta = Integer.parseInt(options.getOrDefault("delta", "0"));
+		double[] congestion = options.containsKey("congestion") ? doubles(options.get("congestion")) : null;
+		Random rand = new Random(Long.parseLong(options.getOrDefault("seed", "1")));
+
+		File dir = new File(System.getProperty("java.io.tmpdir"), "scaling");
+		dir.mkdirs();
+
+		List<Result> results = new ArrayList<Result>();
+		for (int nodes : nodeCounts) {
+			for (int connection : connections) {
+				String graphFile = writeGraph(dir, nodes, connection, rand);
+				for (int trains : trainCounts) {
+					for (String pattern : patterns) {
+						String scheduleFile = writeSchedule(dir, nodes, trains, maxTime, pattern, rand);
+						for (String dispatcher : dispatchers) {
+							Result result = run(dispatcher, graphFile, scheduleFile, delta, congestion);
+							result.nodes = nodes;
+							result.connections = connection;
+							result.trains = trains;
+							result.pattern = pattern;
+							results.add(result);
+							System.out.println(result);
+						}
+					}
+				}
+			}
+		}
+
+		System.out.println();
+		System.out.println(comparison(results, dispatchers.length));
+		if (options.containsKey("report")) {
+			writeReport(options.get("report"), results);
+		}
+	}
+
+	/**
+	 * Dispatch one schedule headless and measure it
+	 * @param dispatcher - "base", "improved" or "agent"
+	 * @param graphFile - graph to load
+	 * @param scheduleFile - schedule to dispatch
+	 * @param delta - bucket width for the base dispatcher's full searches, 0 for sequential
+	 * @param congestion - weights of learned wait and load in the improved and agent routing costs, null for none
+	 * @return wall time, throughput, peak heap, cost and reservation conflicts of the run
+	 */
+	private static Result run(String dispatcher, String graphFile, String scheduleFile, int delta, double[] congestion) throws IOException {
+		MyGraph graph = MyGraph.loadGraphFromFile(graphFile, "Map");
+		TrainDispatch dispatch;
+		if (dispatcher.equals("base")) {
+			dispatch = new TrainDispatch(graph, false);
+			dispatch.setParallelRouting(delta);
+		} else if (dispatcher.equals("agent")) {
+			dispatch = new AgentDispatch(graph, false);
+		} else {
+			dispatch = new ImprovedDispatch(graph, false);
+		}
+		if (congestion != null && dispatch instanceof ImprovedDispatch) {
+			// stats take parameters <weight of newest observation>, <wait weight>, <load weight>, <half-life>
+			((ImprovedDispatch)dispatch).setCongestion(new CongestionStats(0.2, congestion[0], congestion[1], 20));
+		}
+
+		System.gc();
+		HeapSampler heap = new HeapSampler();
+		heap.start();
+
+		// the dispatchers print every train; keep that out of the report
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		long start = System.nanoTime();
+		try {
+			dispatch.dispatch(scheduleFile);
+		} finally {
+			System.setOut(out);
+		}
+		long elapsed = System.nanoTime() - start;
+		long peakHeap = heap.finish();
+
+		Result result = new Result();
+		result.dispatcher = dispatcher;
+		result.millis = elapsed / 1e6;
+		if (dispatch instanceof ImprovedDispatch) {
+			result.conflicts = ((ImprovedDispatch)dispatch).getConflicts();
+		}
+		CostStats costs = dispatch.getTrainCosts();
+		result.trainsPerSecond = costs.getCount() / (elapsed / 1e9);
+		result.peakHeapMB = peakHeap / (1024.0 * 1024.0);
+
+		result.averageCost = dispatch.getAverageCost();
+		result.p50Cost = costs.quantile(0.50);
+		result.p95Cost = costs.quantile(0.95);
+		result.maxCost = costs.getMax();
+		result.ticks = TrainDispatch.globalTime;
+		return result;
+	}
+
+	/**
+	 * Write a connected graph: a random spanning tree plus random edges for density.
+	 * Nodes are numbered 0 to nodes - 1.
+	 */
+	private static String writeGraph(File dir, int nodes, int connections, Random rand) throws IOException {
+		File file = new File(dir, "Graph_" + nodes + "_" + connections + ".txt");
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		for (int i = 1; i < nodes; i++) {
+			writer.write(i + " " + rand.nextInt(i) + " " + (rand.nextInt(Math.max(1, nodes / 4)) + 1));
+			writer.newLine();
+		}
+		for (int c = 0; c < connections; c++) {
+			for (int i = 0; i < nodes; i++) {
+				int destination = rand.nextInt(nodes);
+				while (destination == i) { destination = rand.nextInt(nodes); }
+				writer.write(i + " " + destination + " " + (rand.nextInt(Math.max(1, nodes / 4)) + 1));
+				writer.newLine();
+			}
+		}
+		writer.close();
+		return file.getPath();
+	}
+
+	/**
+	 * Write a schedule following one of the demand patterns.
+	 * Dense patterns send a share of the trains from or to one hot node,
+	 * or release every train early in the time window.
+	 */
+	private static String writeSchedule(File dir, int nodes, int trains, int maxTime, String pattern, Random rand)
+			throws IOException {
+		File file = new File(dir, "Schedule_" + nodes + "_" + trains + "_" + pattern + ".txt");
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		int hot = rand.nextInt(nodes);
+		boolean hotSource = pattern.equals("sourceDense") || pattern.equals("sourceDestDense");
+		boolean hotDestination = pattern.equals("destinationDense") || pattern.equals("sourceDestDense");
+		int window = pattern.equals("timeDense") ? Math.max(1, (int)(maxTime * DENSE_TIME)) : maxTime;
+
+		for (int i = 0; i < trains; i++) {
+			int source = hotSource && rand.nextDouble() < HOT_SHARE ? hot : rand.nextInt(nodes);
+			int destination = hotDestination && rand.nextDouble() < HOT_SHARE ? hot : rand.nextInt(nodes);
+			while (destination == source) { destination = rand.nextInt(nodes); }
+			writer.write(source + " " + destination + " " + rand.nextInt(window));
+			writer.newLine();
+		}
+		writer.close();
+		return file.getPath();
+	}
+
+	/**
+	 * @param perPoint - number of dispatchers run at every grid point
+	 * @return a table of every dispatcher against the first one at each grid point
+	 */
+	private static String comparison(List<Result> results, int perPoint) {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%6s %4s %6s %-17s %-9s | %10s %10s | %9s %6s %6s | %8s | %7s%n",
+				"nodes", "conn", "trains", "pattern", "dispatch", "ms", "trains/s", "avg cost", "p50", "p95",
+				"peak MB", "speedup"));
+		for (int i = 0; i < results.size(); i++) {
+			Result first = results.get(i - i % perPoint);
+			Result result = results.get(i);
+			report.append(String.format("%6d %4d %6d %-17s %-9s | %10.1f %10.1f | %9.2f %6d %6d | %8.1f | %7.2f%n",
+					result.nodes, result.connections, result.trains, result.pattern, result.dispatcher,
+					result.millis, result.trainsPerSecond, result.averageCost, result.p50Cost, result.p95Cost,
+					result.peakHeapMB, first.millis / result.millis));
+		}
+		return report.toString();
+	}
+
+	private static void writeReport(String filename, List<Result> results) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(filename));
+		writer.write("dispatcher,nodes,connections,trains,pattern,millis,trainsPerSecond,peakHeapMB,ticks,averageCost,p50Cost,p95Cost,maxCost,conflicts");
+		writer.newLine();
+		for (Result result : results) {
+			writer.write(String.format("%s,%d,%d,%d,%s,%.3f,%.3f,%.3f,%d,%.3f,%d,%d,%d,%d",
+					result.dispatcher, result.nodes, result.connections, result.trains, result.pattern,
+					result.millis, result.trainsPerSecond, result.peakHeapMB, result.ticks,
+					result.averageCost, result.p50Cost, result.p95Cost, result.maxCost, result.conflicts));
+			writer.newLine();
+		}
+		writer.close();
+	}
+
+	private static double[] doubles(String list) {
+		String[] parts = list.split(",");
+		double[] values = new double[parts.length];
+		for (int i = 0; i < parts.length; i++) { values[i] = Double.parseDouble(parts[i].trim()); }
+		return values;
+	}
+
+	private static int[] ints(String list) {
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) { values[i] = Integer.parseInt(parts[i].trim()); }
+		return values;
+	}
+
+	/**
+	 * Samples the heap in use every millisecond until finished. Pools peak at different
+	 * moments, so the peak of the total is sampled rather than summing each pool's peak.
+	 */
+	private static class HeapSampler extends Thread {
+		private MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		private volatile boolean sampling = true;
+		private long peak;
+
+		HeapSampler() {
+			super("heap-sampler");
+			setDaemon(true);
+		}
+
+		public void run() {
+			while (sampling) {
+				sample();
+				try { Thread.sleep(1); } catch (InterruptedException e) { return; }
+			}
+		}
+
+		private void sample() {
+			peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+		}
+
+		/**
+		 * Stop sampling
+		 * @return the most heap in use at any sample, in bytes
+		 */
+		long finish() {
+			sampling = false;
+			try { join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+			sample();
+			return peak;
+		}
+	}
+
+	private static class Result {
+		String dispatcher;
+		int nodes;
+		int connections;
+		int trains;
+		String pattern;
+		double millis;
+		double trainsPerSecond;
+		double peakHeapMB;
+		int ticks;
+		double averageCost;
+		int p50Cost;
+		int p95Cost;
+		int maxCost;
+		int conflicts; // reservations that waited for another train, improved and agent only
+
+		public String toString() {
+			return String.format("%-8s nodes=%d conn=%d trains=%d %s: %.1f ms, %.1f trains/s, %.1f MB peak, avg cost %.2f, p50 %d, p95 %d, max %d, %d conflicts",
+					dispatcher, nodes, connections, trains, pattern, millis, trainsPerSecond, peakHeapMB,
+					averageCost, p50Cost, p95Cost, maxCost, conflicts);
+		}
+	}
+}
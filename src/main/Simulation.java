@@ -0,0 +1,195 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.graphstream.graph.Edge;
+import org.graphstream.graph.Node;
+
+import graph.MyGraph;
+
+/**
+ * View of the reservation state of the graph that can be forked cheaply to try
+ * dispatch decisions without touching the graph.
+ *
+ * Once a train's path is reserved its whole run is fixed, so the reservations
+ * stand in for the locks and the trains on the network. Weights, capacities and
+ * adjacency are copied once per snapshot and shared by every fork; the reservations
+ * are read straight from the graph's own lists, so a snapshot stays current as the
+ * dispatcher reserves and expires, and only has to be taken again when the tracks
+ * change. A state never writes to the graph: it copies an edge's list the first time
+ * it reserves on that edge, so a fork costs memory only for the edges it has touched.
+ * Closed edges are left out.
+ *
+ * The graph's reservations and a state must not change while forks of it are in
+ * use; forks of the same state can be used from different threads.
+ */
+public class Simulation {
+	private Network network;
+	private Simulation parent;
+	private HashMap<Integer, List<Integer>> booked = new HashMap<Integer, List<Integer>>(); // edges this fork reserved on
+
+	private Simulation(Network network, Simulation parent) {
+		this.network = network;
+		this.parent = parent;
+	}
+
+	/**
+	 * Copy weights, capacities and adjacency out of the graph, and refer to its reservations
+	 */
+	public static Simulation of(MyGraph graph) {
+		Network network = new Network();
+		network.edges = new Edge[graph.getEdgeCount()];
+		network.nodes = new Node[graph.getNodeCount()];
+		network.weight = new int[network.edges.length];
+		network.capacity = new int[network.edges.length];
+		network.adjacent = new int[network.nodes.length][];
+		network.reservations = new ArrayList<List<Integer>>();
+
+		for (Edge edge : graph.getEdgeList()) {
+			network.edges[edge.getIndex()] = edge;
+			network.weight[edge.getIndex()] = edge.getAttribute("weight");
+			network.capacity[edge.getIndex()] = edge.getAttribute("capacity");
+		}
+		for (int e = 0; e < network.edges.length; e++) {
+			network.reservations.add(network.edges[e].<List<Integer>>getAttribute("reservations"));
+		}
+		for (Node node : graph) {
+			network.nodes[node.getIndex()] = node;
+			List<Edge> list = Dijkstra.getAdjacencies(node);
+			int[] open = new int[list.size()];
+			int count = 0;
+			for (Edge edge : list) {
+				if (!edge.hasAttribute("closed")) { open[count++] = edge.getIndex(); }
+			}
+			network.adjacent[node.getIndex()] = Arrays.copyOf(open, count);
+		}
+		return new Simulation(network, null);
+	}
+
+	/**
+	 * @return a new state that starts with this one's reservations
+	 */
+	public Simulation fork() {
+		return new Simulation(network, this);
+	}
+
+	/**
+	 * Earliest-arrival Dijkstra, waiting for reservations as needed
+	 * @return edge indices from source to target; empty if target is unreachable
+	 */
+	public int[] route(int source, int target, int start) {
+		return route(source, target, start, -1);
+	}
+
+	/**
+	 * Earliest-arrival Dijkstra that does not use one edge
+	 * @param banned - index of the edge to leave out, -1 for none
+	 * @return edge indices from source to target; empty if target is unreachable
+	 */
+	public int[] route(int source, int target, int start, int banned) {
+		int[] arrival = new int[network.nodes.length];
+		int[] previous = new int[network.nodes.length]; // edge used to reach each node
+		Arrays.fill(arrival, Integer.MAX_VALUE);
+		Arrays.fill(previous, -1);
+		arrival[source] = start;
+
+		PriorityQueue<int[]> nodeQueue = new PriorityQueue<int[]>(10, Comparator.comparingInt((int[] entry) -> entry[1]));
+		nodeQueue.add(new int[] { source, start });
+
+		while (!nodeQueue.isEmpty()) {
+			int[] next = nodeQueue.poll();
+			int node = next[0];
+			if (next[1] > arrival[node]) { continue; } // stale entry
+			if (node == target) { break; }
+
+			for (int e : network.adjacent[node]) {
+				if (e == banned) { continue; }
+				int other = opposite(e, node);
+				int reserve = Dijkstra.nextAvailable(reservationsOf(e), network.weight[e], network.capacity[e], arrival[node]);
+				int through = reserve + network.weight[e];
+				if (through < arrival[other]) {
+					arrival[other] = through;
+					previous[other] = e;
+					nodeQueue.add(new int[] { other, through });
+				}
+			}
+		}
+
+		if (source == target || arrival[target] == Integer.MAX_VALUE) { return new int[0]; }
+
+		List<Integer> path = new ArrayList<Integer>();
+		for (int node = target; node != source; node = opposite(previous[node], node)) {
+			path.add(previous[node]);
+		}
+		Collections.reverse(path);
+		int[] toReturn = new int[path.size()];
+		for (int i = 0; i < toReturn.length; i++) { toReturn[i] = path.get(i); }
+		return toReturn;
+	}
+
+	/**
+	 * Reserve a path the same way ImprovedDispatch does
+	 * @param path - edge indices from the source
+	 * @param start - time the train is ready at its source
+	 * @return time the train reaches the end of the path
+	 */
+	public int reserve(int[] path, int start) {
+		int arrival = start;
+		for (int e : path) {
+			int reserve = Dijkstra.nextAvailable(reservationsOf(e), network.weight[e], network.capacity[e], arrival);
+			List<Integer> copy = booked.get(e);
+			if (copy == null) {
+				copy = new ArrayList<Integer>(reservationsOf(e));
+				booked.put(e, copy);
+			}
+			ImprovedDispatch.makeReservation(copy, reserve);
+			arrival = reserve + network.weight[e];
+		}
+		return arrival;
+	}
+
+	/**
+	 * @return the reservations of an edge as this state sees them
+	 */
+	private List<Integer> reservationsOf(int edge) {
+		for (Simulation state = this; state != null; state = state.parent) {
+			List<Integer> copy = state.booked.get(edge);
+			if (copy != null) { return copy; }
+		}
+		return network.reservations.get(edge);
+	}
+
+	/**
+	 * @return the node at the other end of edge from node
+	 */
+	public int opposite(int edge, int node) {
+		int a = network.edges[edge].getSourceNode().getIndex();
+		return a == node ? network.edges[edge].getTargetNode().getIndex() : a;
+	}
+
+	public Edge getEdge(int edge) {
+		return network.edges[edge];
+	}
+
+	public Node getNode(int node) {
+		return network.nodes[node];
+	}
+
+	/**
+	 * The part of a snapshot every fork shares
+	 */
+	private static class Network {
+		Edge[] edges;
+		Node[] nodes;
+		int[] weight;
+		int[] capacity;
+		int[][] adjacent; // edge indices leaving each node
+		List<List<Integer>> reservations;
+	}
+}
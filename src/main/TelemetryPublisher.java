@@ -0,0 +1,237 @@
+package main;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import org.graphstream.graph.Edge;
+import org.graphstream.ui.spriteManager.Sprite;
+import org.graphstream.ui.spriteManager.SpriteManager;
+
+/**
+ * Machine-readable feed of train positions, written as compact binary frames.
+ *
+ * Every tick the dispatcher hands over its trains and the publisher encodes one frame
+ * holding only the trains whose edge, offset or state changed. Encoded frames go into
+ * a bounded queue that a writer thread drains to a file or a local socket, so the
+ * simulation never waits on I/O. When the queue is full the oldest frame is dropped,
+ * and the next frame is a key frame with every train, so a consumer can recover.
+ * Key frames are also sent every keyInterval frames for consumers joining late.
+ *
+ * Stream format, integers as unsigned LEB128 varints unless noted:
+ *  stream  := "TDT1" frame*
+ *  frame   := length kind(byte, 0 delta, 1 key) sequence tick count record*
+ *  record  := train flags(byte) [edge] [offset] [state(byte, 0 moving, 1 delayed)]
+ *  flags   := 1 edge follows, 2 offset follows, 4 state follows, 8 train arrived
+ * length counts the bytes after it. train is the number of the train's sprite and edge
+ * the id of its edge. offset is the train's location on the edge in weight units,
+ * zigzag encoded: absolute when the record has an edge, otherwise the change since
+ * the train's last record. A key frame replaces everything the consumer knew.
+ * A gap in sequence means frames were dropped; ignore delta frames until the next key frame.
+ */
+public class TelemetryPublisher implements Runnable {
+	private static final byte DELTA = 0;
+	private static final byte KEY = 1;
+	private static final int EDGE = 1;
+	private static final int OFFSET = 2;
+	private static final int STATE = 4;
+	private static final int ARRIVED = 8;
+
+	private OutputStream out;
+	private int capacity;    // frames that may wait for the writer
+	private int keyInterval; // frames between key frames
+	private ArrayDeque<byte[]> frames = new ArrayDeque<byte[]>();
+	private boolean closed;
+	private Thread thread;
+
+	// touched by the simulation thread only
+	private HashMap<Integer, int[]> last = new HashMap<Integer, int[]>(); // train -> {edge, offset, state} last published
+	private int sequence;
+	private boolean keyNext = true;
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+	private long dropped; // guarded by frames
+	private volatile long written;
+
+	/**
+	 * @param out - stream to write frames to
+	 * @param capacity - frames that may wait before the oldest is dropped
+	 * @param keyInterval - frames between key frames
+	 */
+	public TelemetryPublisher(OutputStream out, int capacity, int keyInterval) throws IOException {
+		this.out = new BufferedOutputStream(out);
+		this.capacity = Math.max(1, capacity);
+		this.keyInterval = Math.max(1, keyInterval);
+		this.out.write(new byte[] { 'T', 'D', 'T', '1' });
+		thread = new Thread(this, "telemetry");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return a publisher writing to a file
+	 */
+	public static TelemetryPublisher toFile(String filename, int capacity, int keyInterval) throws IOException {
+		return new TelemetryPublisher(new FileOutputStream(filename), capacity, keyInterval);
+	}
+
+	/**
+	 * @return a publisher writing to a consumer listening on a port of this machine
+	 */
+	public static TelemetryPublisher toSocket(int port, int capacity, int keyInterval) throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		socket.shutdownInput();
+		return new TelemetryPublisher(socket.getOutputStream(), capacity, keyInterval);
+	}
+
+	/**
+	 * Encode the changes since the last frame and queue them for the writer
+	 * @param tick - current time
+	 * @param trains - the dispatcher's trains
+	 */
+	public void publish(int tick, SpriteManager trains) {
+		boolean key = keyNext || sequence % keyInterval == 0;
+		keyNext = false;
+		buffer.reset();
+		int count = 0;
+
+		HashMap<Integer, int[]> seen = new HashMap<Integer, int[]>();
+		for (Sprite sprite : trains) {
+			int train = Integer.parseInt(sprite.getId().substring(1));
+			int edge = Integer.parseInt(((Edge)sprite.getAttachment()).getId());
+			int offset = sprite.getAttribute("location");
+			int state = sprite.getAttribute("ui.class") == "delayed" ? 1 : 0;
+			int[] now = { edge, offset, state };
+			seen.put(train, now);
+
+			int[] before = key ? null : last.get(train);
+			int flags = 0;
+			if (before == null || before[0] != edge) { flags |= EDGE; }
+			if (before == null || before[1] != offset) { flags |= OFFSET; }
+			if (before == null || before[2] != state) { flags |= STATE; }
+			if (flags == 0) { continue; }
+
+			writeVarint(train);
+			buffer.write(flags);
+			if ((flags & EDGE) != 0) { writeVarint(edge); }
+			if ((flags & OFFSET) != 0) { writeVarint(zigzag((flags & EDGE) != 0 ? offset : offset - before[1])); }
+			if ((flags & STATE) != 0) { buffer.write(state); }
+			count++;
+		}
+		if (!key) {
+			for (Integer train : last.keySet()) {
+				if (!seen.containsKey(train)) {
+					writeVarint(train);
+					buffer.write(ARRIVED);
+					count++;
+				}
+			}
+		}
+		last = seen;
+		if (count == 0 && !key) { return; } // nothing moved
+
+		byte[] records = buffer.toByteArray();
+		buffer.reset();
+		buffer.write(key ? KEY : DELTA);
+		writeVarint(sequence++);
+		writeVarint(tick);
+		writeVarint(count);
+		byte[] header = buffer.toByteArray();
+
+		buffer.reset();
+		writeVarint(header.length + records.length);
+		buffer.write(header, 0, header.length);
+		buffer.write(records, 0, records.length);
+		offer(buffer.toByteArray());
+	}
+
+	private void offer(byte[] frame) {
+		synchronized (frames) {
+			if (frames.size() == capacity) {
+				frames.pollFirst();
+				dropped++;
+				keyNext = true;
+			}
+			frames.addLast(frame);
+			frames.notify();
+		}
+	}
+
+	/**
+	 * Writer loop: write frames as they come, flush when the queue is empty
+	 */
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				byte[] frame;
+				synchronized (frames) {
+					frame = frames.pollFirst();
+					if (frame == null && closed) { break; }
+				}
+				if (frame == null) {
+					// flush outside the lock so publish never waits on I/O
+					out.flush();
+					synchronized (frames) {
+						while (frames.isEmpty() && !closed) { frames.wait(); }
+					}
+					continue;
+				}
+				out.write(frame);
+				written++;
+			}
+			out.flush();
+		} catch (IOException | InterruptedException e) {
+			// the consumer went away; frames are dropped from now on
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Write the frames still queued, then close the stream
+	 */
+	public void close() throws InterruptedException {
+		synchronized (frames) {
+			closed = true;
+			frames.notify();
+		}
+		thread.join();
+	}
+
+	/**
+	 * @return frames dropped because the writer fell behind
+	 */
+	public long getDropped() {
+		synchronized (frames) {
+			return dropped;
+		}
+	}
+
+	/**
+	 * @return frames written so far
+	 */
+	public long getWritten() {
+		return written;
+	}
+
+	private void writeVarint(int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer.write(value);
+	}
+
+	private static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+}
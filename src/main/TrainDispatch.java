@@ -1,9 +1,12 @@
 package main;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.TreeMap;
 
 import org.graphstream.graph.Edge;
 import org.graphstream.graph.Node;
@@ -18,20 +21,50 @@ public class TrainDispatch {
     protected static MyGraph graph; // graph used by display
     protected static int globalTime; //global time incremented by sleep()
     protected Viewer view;
+    protected boolean display; // false when running headless, without a viewer or animation
     protected SpriteManager sman; // manages sprites on the graph
     private int spriteCount; // counter that iterates every time a sprite is add for naming purposes
-    private List<Integer> trainCost;
+    private CostStats trainCost; // cost of every arrived train
+    private TreeMap<Integer, CostStats> classDelays; // priority class -> arrived trains' delays beyond their free run
+    private HashMap<Integer, Integer> latencyTargets; // priority class -> most delay a train of the class should see
+    protected AlternativeRoutes routes; // cached alternative routes for each source and destination
+    private int bucketWidth; // delta-stepping bucket width for full searches, 0 for sequential Dijkstra
+    private HashMap<Edge, List<Schedule>> waiting; // blocked trains, under each locked edge that could free a route
+    private HashMap<Schedule, List<Edge>> parked; // trains waiting for one of their edges to unlock -> those edges
+    private PriorityQueue<Schedule> awake; // trains to try dispatching at the current time
+    private TreeMap<Integer, List<Runnable>> changes; // time -> topology changes to make then
+    private HashSet<Edge> closing; // closed edges that trains are still routed over
+    private TelemetryPublisher telemetry; // if set, receives train positions every tick
     
     public TrainDispatch(MyGraph g) {
+        this(g, true);
+    }
+
+    /**
+     * @param g - graph to dispatch on
+     * @param display - whether to open a viewer and animate the trains
+     */
+    public TrainDispatch(MyGraph g, boolean display) {
         graph = g;
-        System.setProperty("org.graphstream.ui.renderer", "org.graphstream.ui.j2dviewer.J2DGraphRenderer");
-        view = graph.display(); // begin display
-        sleep(2000); // allow the graph to finish building
+        this.display = display;
+        if (display) {
+            System.setProperty("org.graphstream.ui.renderer", "org.graphstream.ui.j2dviewer.J2DGraphRenderer");
+            view = graph.display(); // begin display
+            sleep(2000); // allow the graph to finish building
+        }
 
         sman = new SpriteManager(graph);
         spriteCount = 0;
         globalTime = 0;
-        trainCost = new ArrayList<Integer>();
+        trainCost = new CostStats();
+        classDelays = new TreeMap<Integer, CostStats>();
+        latencyTargets = new HashMap<Integer, Integer>();
+        routes = new AlternativeRoutes(graph, 4);
+        waiting = new HashMap<Edge, List<Schedule>>();
+        parked = new HashMap<Schedule, List<Edge>>();
+        awake = new PriorityQueue<Schedule>(11, Schedule.BY_PRIORITY);
+        changes = new TreeMap<Integer, List<Runnable>>();
+        closing = new HashSet<Edge>();
     }
     
 
@@ -43,32 +76,50 @@ public class TrainDispatch {
 	public void dispatch(String filename) throws FileNotFoundException {
 	    PriorityQueue<Schedule> scheduleQueue = Schedule.loadTrainsfromFile(graph, filename); // determines in what order trains should be dispatched
 
-	    while(!scheduleQueue.isEmpty()) {
-	    	Schedule next = scheduleQueue.peek();
-	    	// if the next train to be dispatched is not yet ready, increment time and continue
-	    	if (next.getDispatchTime() > globalTime) {
-	    		timeTravel();
-	    		continue;
+	    while(!scheduleQueue.isEmpty() || !parked.isEmpty() || !awake.isEmpty()) {
+	    	// trains that are ready join the trains woken by unlocked edges
+	    	while (!scheduleQueue.isEmpty() && scheduleQueue.peek().getDispatchTime() <= globalTime) {
+	    		awake.add(scheduleQueue.poll());
 	    	}
 
-	    	Dijkstra d = new Dijkstra(next.getSource());
-	    	d.computeUnlockedPaths();
-		    List<Edge> path = d.getEdgePath(next.getDestination());
-		    List<Node> nodePath = d.getShortestPathTo(next.getDestination());
-		    
-		    if (!path.isEmpty()) {
-		    	// lock all edges in the path
-		        for (Edge edge : path) { edge.setAttribute("ui.class", "locked"); }
-		        
-		        addSprite(next, path, nodePath); // add the sprite for the schedule and its path	        
-		        	        
-		        System.out.println("Dispatching " + scheduleQueue.poll()); // this train has been dispatched; remove from queue
+	    	// try every awake train by priority class, then dispatch order; a blocked train does not hold up the ones behind it
+	    	while (!awake.isEmpty()) {
+	    		Schedule next = awake.poll();
 
-		    }
-		    // only move forward in time if there are no more trains that can be dispatched at the current time
-		    if (scheduleQueue.isEmpty() || scheduleQueue.peek().getDispatchTime() > globalTime || path.isEmpty()) {
-		    	timeTravel();
-		    }
+	    		List<Edge> path;
+	    		List<Node> nodePath;
+	    		List<Edge> blocking = null;
+	    		// try the cached routes first, only search the whole graph if they are all locked
+	    		AlternativeRoutes.Route route = routes.findUnlocked(next.getSource(), next.getDestination());
+	    		if (route != null) {
+	    			path = route.getEdges();
+	    			nodePath = route.getNodes();
+	    		} else {
+	    			Dijkstra d = bucketWidth > 0 ? new ParallelDijkstra(next.getSource(), bucketWidth) : new Dijkstra(next.getSource());
+	    			d.computeUnlockedPaths();
+	    			path = d.getEdgePath(next.getDestination());
+	    			nodePath = d.getShortestPathTo(next.getDestination());
+	    			blocking = d.getBlockingEdges();
+	    		}
+
+	    		if (!path.isEmpty()) {
+	    			// lock all edges in the path
+	    			for (Edge edge : path) { occupy(edge); }
+
+	    			Sprite sprite = addSprite(next, path, nodePath); // add the sprite for the schedule and its path
+	    			recordDispatch(sprite, next, 0);
+	    			recordState(sprite, "moving");
+
+	    			System.out.println("Dispatching " + next); // this train has been dispatched
+	    		} else if (blocking.isEmpty() && changes.isEmpty()) {
+	    			// no locked edge stands between source and destination, and no change to the
+	    			// tracks is coming; unlocking will never help
+	    			System.out.println("No route for " + next);
+	    		} else {
+	    			park(next, blocking);
+	    		}
+	    	}
+	    	timeTravel();
 	    }
 	    
 	    while (hasLocked()) {
@@ -77,6 +128,222 @@ public class TrainDispatch {
 	    
 	}
 
+	/**
+	 * Park a blocked train until one of the edges blocking it is unlocked,
+	 * or the tracks change
+	 * @param schedule - the blocked train
+	 * @param blocking - locked edges, one of which must unlock before the train has a route
+	 */
+	private void park(Schedule schedule, List<Edge> blocking) {
+		parked.put(schedule, blocking);
+		for (Edge edge : blocking) {
+			List<Schedule> trains = waiting.get(edge);
+			if (trains == null) {
+				trains = new ArrayList<Schedule>();
+				waiting.put(edge, trains);
+			}
+			trains.add(schedule);
+		}
+	}
+
+	/**
+	 * Wake the trains parked on an edge that was just unlocked.
+	 * A train parked on several edges is woken by the first one and
+	 * leaves the waiting lists of the others.
+	 * @param edge - the unlocked edge
+	 */
+	private void wake(Edge edge) {
+		List<Schedule> trains = waiting.remove(edge);
+		if (trains == null) { return; }
+		for (Schedule schedule : trains) {
+			List<Edge> blocking = parked.remove(schedule);
+			if (blocking == null) { continue; }
+			awake.add(schedule);
+			for (Edge other : blocking) {
+				List<Schedule> others = waiting.get(other);
+				if (other == edge || others == null) { continue; }
+				others.remove(schedule);
+				if (others.isEmpty()) { waiting.remove(other); }
+			}
+		}
+	}
+
+	/**
+	 * Wake every parked train, for changes that can open routes anywhere
+	 */
+	private void wakeAll() {
+		awake.addAll(parked.keySet());
+		parked.clear();
+		waiting.clear();
+	}
+
+	/**
+	 * Make a topology change at the given time, after trains have moved for that tick
+	 * @param time - time to make the change
+	 * @param change - calls to addTrack, closeTrack or setTrackWeight
+	 */
+	public void scheduleChange(int time, Runnable change) {
+		List<Runnable> due = changes.get(time);
+		if (due == null) {
+			due = new ArrayList<Runnable>();
+			changes.put(time, due);
+		}
+		due.add(change);
+	}
+
+	/**
+	 * @return true if topology changes are still scheduled
+	 */
+	protected boolean changesPending() {
+		return !changes.isEmpty();
+	}
+
+	/**
+	 * Make the changes due by now, then take out closed edges no train uses any more
+	 */
+	private void applyChanges() {
+		boolean changed = false;
+		while (!changes.isEmpty() && changes.firstKey() <= globalTime) {
+			for (Runnable change : changes.pollFirstEntry().getValue()) { change.run(); }
+			changed = true;
+		}
+		// trains parked for a change to the tracks get a last look once none are left
+		if (changed && changes.isEmpty()) { wakeAll(); }
+		Iterator<Edge> it = closing.iterator();
+		while (it.hasNext()) {
+			Edge edge = it.next();
+			if (!inUse(edge)) {
+				graph.removeEdge(edge);
+				waiting.remove(edge);
+				it.remove();
+				routes.refresh(); // edge indices moved
+				tracksChanged();
+			}
+		}
+	}
+
+	/**
+	 * Open a new track while trains are running
+	 * @param from - id of one end
+	 * @param to - id of the other end
+	 * @param weight - time a train takes to traverse it
+	 * @param capacity - number of trains it holds at once
+	 * @return the new edge
+	 */
+	public Edge addTrack(String from, String to, int weight, int capacity) {
+		Edge edge = graph.addTrack(from, to, weight, capacity);
+		routes.invalidate(edge, true);
+		tracksChanged();
+		wakeAll();
+		return edge;
+	}
+
+	/**
+	 * Close a track while trains are running. It takes no new trains. Trains routed
+	 * over it are rerouted from the end of the edge they are on; a train with no other
+	 * way, or already on the edge, keeps its route. The edge is taken out of the
+	 * graph once no train uses it.
+	 * @param edge - the edge to close
+	 */
+	public void closeTrack(Edge edge) {
+		edge.setAttribute("closed", true);
+		edge.setAttribute("ui.class", "locked");
+		routes.invalidate(edge, false);
+		tracksChanged();
+		for (Sprite sprite : trainsRoutedOver(edge, false)) { reroute(sprite); }
+		// trains parked on it would wait forever; let them look again
+		wake(edge);
+		closing.add(edge);
+	}
+
+	/**
+	 * Change the time a train takes over a track, for example for a speed restriction.
+	 * Trains on it keep the distance they have run and take the new weight for the rest;
+	 * trains routed over it are rerouted with the new weight.
+	 * @param edge - the edge to change
+	 * @param weight - new weight
+	 */
+	public void setTrackWeight(Edge edge, int weight) {
+		int change = weight - (int)edge.getAttribute("weight");
+		for (Sprite sprite : sman) {
+			// running from the target, location is the distance left
+			if (sprite.getAttachment() == edge && !sprite.hasAttribute("fromSource")) {
+				sprite.setAttribute("location", Math.max(0, (int)sprite.getAttribute("location") + change));
+			}
+		}
+		edge.setAttribute("weight", weight);
+		routes.invalidate(edge, change < 0);
+		tracksChanged();
+		for (Sprite sprite : trainsRoutedOver(edge, true)) { reroute(sprite); }
+	}
+
+	/**
+	 * Called after a track is added, closed, re-weighted or taken out of the graph
+	 */
+	protected void tracksChanged() {
+	}
+
+	/**
+	 * @param edge - a changed edge
+	 * @param onEdge - whether to include trains already on the edge
+	 * @return trains whose route ahead uses edge
+	 */
+	protected List<Sprite> trainsRoutedOver(Edge edge, boolean onEdge) {
+		List<Sprite> trains = new ArrayList<Sprite>();
+		for (Sprite sprite : sman) {
+			List<Edge> path = sprite.getAttribute("path");
+			int at = path.indexOf(sprite.getAttachment());
+			if (path.subList(at + 1, path.size()).contains(edge) || (onEdge && path.get(at) == edge)) {
+				trains.add(sprite);
+			}
+		}
+		return trains;
+	}
+
+	/**
+	 * @return true if a train still holds or is routed over the edge
+	 */
+	protected boolean inUse(Edge edge) {
+		return (int)edge.getAttribute("occupancy") > 0;
+	}
+
+	/**
+	 * Route a train again from the end of the edge it is on, without turning back over
+	 * that edge. The edges it has passed and no longer uses are released. If there is
+	 * no other route, the train keeps its old one.
+	 * @param sprite - the train to reroute
+	 */
+	protected void reroute(Sprite sprite) {
+		Schedule schedule = sprite.getAttribute("schedule");
+		List<Edge> path = sprite.getAttribute("path");
+		Edge current = (Edge)sprite.getAttachment();
+		int at = path.indexOf(current);
+		List<Edge> passed = new ArrayList<Edge>(path.subList(0, at));
+		List<Edge> ahead = new ArrayList<Edge>(path.subList(at + 1, path.size()));
+		for (Edge edge : ahead) { release(edge); }
+
+		boolean locked = current.getAttribute("ui.class") == "locked";
+		current.setAttribute("ui.class", "locked");
+		Dijkstra d = new Dijkstra(getCurrentNode(sprite, current));
+		d.computeUnlockedPaths();
+		List<Edge> rest = d.getEdgePath(schedule.getDestination());
+		if (!locked) { current.setAttribute("ui.class", "unlocked"); }
+
+		if (rest.isEmpty()) { rest = ahead; }
+		for (Edge edge : rest) { occupy(edge); }
+		for (Edge edge : passed) {
+			release(edge);
+			wake(edge);
+		}
+		for (Edge edge : ahead) {
+			if (!rest.contains(edge)) { wake(edge); }
+		}
+
+		path.clear();
+		path.add(current);
+		path.addAll(rest);
+	}
+
 	/**
 	 * Attach a train sprite its starting edge
 	 * @param schedule - train to create sprite for
@@ -99,12 +366,81 @@ public class TrainDispatch {
 	}
 	
 	/**
-	 * @return if the graph has any locked edges left
+	 * Report a dispatch decision to the flight recorder
+	 * @param sprite - the dispatched train
+	 * @param schedule - the train's schedule
+	 * @param startDelay - time the train waits before entering its first edge
+	 */
+	protected void recordDispatch(Sprite sprite, Schedule schedule, int startDelay) {
+		DispatchEvents.Dispatch event = new DispatchEvents.Dispatch();
+		if (event.shouldCommit()) {
+			List<Edge> path = sprite.getAttribute("path");
+			event.train = sprite.getId();
+			event.source = schedule.getSource().getId();
+			event.destination = schedule.getDestination().getId();
+			event.dispatchTime = schedule.getDispatchTime();
+			event.globalTime = globalTime;
+			event.pathLength = path.size();
+			event.startDelay = startDelay;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Report a train changing state to the flight recorder.
+	 * While recording, delayed trains remember when they stopped so the
+	 * event for moving again carries how long they waited.
+	 * @param sprite - the train
+	 * @param state - "moving", "delayed" or "arrived"
+	 */
+	protected void recordState(Sprite sprite, String state) {
+		DispatchEvents.TrainState event = new DispatchEvents.TrainState();
+		if (event.shouldCommit()) {
+			event.train = sprite.getId();
+			event.state = state;
+			event.edge = sprite.getAttachment().getId();
+			event.globalTime = globalTime;
+			if (state == "delayed") {
+				sprite.setAttribute("delayedSince", globalTime);
+			} else if (sprite.hasAttribute("delayedSince")) {
+				event.ticksDelayed = globalTime - (int)sprite.getAttribute("delayedSince");
+				sprite.removeAttribute("delayedSince");
+			}
+			event.commit();
+		}
+	}
+
+	/**
+	 * Put a train on an edge. The edge is locked once it holds as many trains as its capacity.
+	 * @param edge - edge the train enters
+	 */
+	protected void occupy(Edge edge) {
+		int occupancy = (int)edge.getAttribute("occupancy") + 1;
+		edge.setAttribute("occupancy", occupancy);
+		if (occupancy >= (int)edge.getAttribute("capacity")) {
+			edge.setAttribute("ui.class", "locked");
+		}
+	}
+
+	/**
+	 * Take a train off an edge, unlocking the edge if it was full
+	 * @param edge - edge the train leaves
+	 */
+	protected void release(Edge edge) {
+		int occupancy = (int)edge.getAttribute("occupancy") - 1;
+		edge.setAttribute("occupancy", occupancy);
+		if (occupancy < (int)edge.getAttribute("capacity") && !edge.hasAttribute("closed")) {
+			edge.setAttribute("ui.class", "unlocked");
+		}
+	}
+
+	/**
+	 * @return if the graph has any occupied edges left
 	 */
 	protected boolean hasLocked() {
 		Iterator<Edge> it = graph.getEdgeIterator();
 		while(it.hasNext()) {
-			if(it.next().getAttribute("ui.class") == "locked") { return true; }
+			if((int)it.next().getAttribute("occupancy") > 0) { return true; }
 		}
 		return false;
 	}
@@ -115,10 +451,23 @@ public class TrainDispatch {
 	 */
 	protected void timeTravel() {
 		globalTime++;
-	    moveTrains(); // move trains on their tracks
+		if (display) {
+			moveTrains(); // move trains on their tracks
+		}
 	    shift(); // move sprites to their next edge as necessary
+	    applyChanges();
+	    if (telemetry != null) {
+	    	telemetry.publish(globalTime, sman);
+	    }
 	}
 	
+	/**
+	 * @return true if something reads train positions every tick: the display or telemetry
+	 */
+	protected boolean positionsWatched() {
+		return display || telemetry != null;
+	}
+
 	/**
 	 * Determine which edge to start at
      * if from the edge's source give it that attribute 
@@ -182,8 +531,12 @@ public class TrainDispatch {
                   setDirection(sprite, getCurrentNode(sprite, lastEdge), (Edge)sprite.getAttachment());
               } else {
                   getTrainCost(sprite);
+                  recordState(sprite, "arrived");
                   // unlock all paths
-                  for(Edge edge : path) { edge.setAttribute("ui.class", "unlocked"); }
+                  for(Edge edge : path) {
+                      release(edge);
+                      wake(edge);
+                  }
                   toRemove.add(sprite);
               }
 		    } else {
@@ -200,9 +553,9 @@ public class TrainDispatch {
     protected boolean atEndEdge(Sprite sprite) {
 	    Edge edge = (Edge)sprite.getAttachment();
         if (sprite.hasAttribute("fromSource")
-                &&(int)sprite.getAttribute("location") + 1 == (int)edge.getAttribute("weight")) {
+                &&(int)sprite.getAttribute("location") + 1 >= (int)edge.getAttribute("weight")) {
             return true;
-        } else if (!sprite.hasAttribute("fromSource") && (int)sprite.getAttribute("location") - 1 == 0){
+        } else if (!sprite.hasAttribute("fromSource") && (int)sprite.getAttribute("location") - 1 <= 0){
             return true;
         }
         return false;
@@ -231,17 +584,75 @@ public class TrainDispatch {
 	 * @param sprite - the sprite that represents the train that arrived
 	 */
 	protected void getTrainCost(Sprite sprite) {
-		int dispatchTime = ((Schedule) sprite.getAttribute("schedule")).getDispatchTime();
+		Schedule schedule = sprite.getAttribute("schedule");
+		int dispatchTime = schedule.getDispatchTime();
 		trainCost.add((globalTime - dispatchTime));
+
+		// delay is the time lost against the shortest route with no other trains
+		List<AlternativeRoutes.Route> free = routes.getRoutes(schedule.getSource(), schedule.getDestination());
+		if (!free.isEmpty()) {
+			CostStats delays = classDelays.get(schedule.getPriority());
+			if (delays == null) {
+				delays = new CostStats();
+				classDelays.put(schedule.getPriority(), delays);
+			}
+			delays.add(globalTime - dispatchTime - free.get(0).getLength());
+		}
+	}
+
+	/**
+	 * Publish train positions after every tick
+	 * @param telemetry - publisher to hand the trains to, or null for none
+	 */
+	public void setTelemetry(TelemetryPublisher telemetry) {
+		this.telemetry = telemetry;
+	}
+
+	/**
+	 * Search the whole graph with parallel delta-stepping when every cached route is locked
+	 * @param bucketWidth - distance range of each bucket, 0 to search with sequential Dijkstra
+	 */
+	public void setParallelRouting(int bucketWidth) {
+		this.bucketWidth = bucketWidth;
+	}
+
+	/**
+	 * Set the delay trains of a priority class should stay within, for getPriorityReport
+	 * @param priority - priority class
+	 * @param maxDelay - most time a train of the class should lose against its free run
+	 */
+	public void setLatencyTarget(int priority, int maxDelay) {
+		latencyTargets.put(priority, maxDelay);
+	}
+
+	/**
+	 * @return for each priority class, the number of arrived trains, their mean, standard
+	 * deviation, 95th percentile and max delay, and the share within the class's latency target
+	 */
+	public String getPriorityReport() {
+		String report = "";
+		for (int priority : classDelays.keySet()) {
+			CostStats delays = classDelays.get(priority);
+			report += String.format("class %d: %d trains, delay mean %.2f, sd %.2f, p95 %d, max %d", priority, delays.getCount(),
+					delays.getMean(), Math.sqrt(delays.getVariance()), delays.quantile(0.95), delays.getMax());
+			Integer target = latencyTargets.get(priority);
+			if (target != null) {
+				report += String.format(", %.1f%% within target %d", 100.0 * delays.countAtMost(target) / delays.getCount(), target);
+			}
+			report += "\n";
+		}
+		return report;
 	}
 	
+	/**
+	 * @return summary of the cost of every train that has arrived
+	 */
+	protected CostStats getTrainCosts() {
+		return trainCost;
+	}
+
 	protected double getAverageCost() {
-		double averageCost = 0.0;
-		for (int i = 0; i < trainCost.size(); i++) {
-			averageCost += trainCost.get(i);
-		}
-		averageCost = averageCost / trainCost.size();
-		return averageCost;
+		return trainCost.getMean();
 	}
 	 
 	protected static void sleep(int s) {
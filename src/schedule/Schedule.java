@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Comparator;
 import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.Scanner;
@@ -18,11 +19,23 @@ public class Schedule implements Comparable<Schedule> {
 	private int dispatchTime;   //time the train is ready for dispatch
 	private Node source;		//starting position
 	private Node destination;	//target position
+	private int priority;		//priority class, 0 is the most important
+
+	/**
+	 * Orders trains by priority class, then by dispatchTime
+	 */
+	public static final Comparator<Schedule> BY_PRIORITY =
+			Comparator.comparingInt(Schedule::getPriority).thenComparingInt(Schedule::getDispatchTime);
 
 	public Schedule(Node source, Node destination, int dispatchTime) {
+		this(source, destination, dispatchTime, 0);
+	}
+
+	public Schedule(Node source, Node destination, int dispatchTime, int priority) {
 		this.dispatchTime = dispatchTime;
 		this.source = source;
 		this.destination = destination;
+		this.priority = priority;
 	}
 
 	public int getDispatchTime() {
@@ -37,6 +50,10 @@ public class Schedule implements Comparable<Schedule> {
 		dispatchTime += waitTime;
 	}
 
+	public int getPriority() {
+		return priority;
+	}
+
 	public Node getSource() {
 		return source;
 	}
@@ -60,7 +77,11 @@ public class Schedule implements Comparable<Schedule> {
 		output += "(";
 		output += source.toString() + ", ";
 		output += destination.toString() + ", ";
-		output += dispatchTime + ")";
+		output += dispatchTime;
+		if (priority != 0) {
+			output += ", " + priority;
+		}
+		output += ")";
 		return output;
 	}
 
@@ -129,7 +150,8 @@ public class Schedule implements Comparable<Schedule> {
 	/**
 	 * Returns a PriorityQueue of Trains loaded from a file
 	 * Each line of the file represents a train and should be formatted
-	 * <sourceNode> <destinationNode> <dispatchTime>
+	 * <sourceNode> <destinationNode> <dispatchTime> [<priority>]
+	 * where priority is the train's class, 0 (the most important) if left out
 	 * Note that the PriorityQueue is sorted by the dispatchTimes of each train
 	 * @param graph the graph to load the the nodes from
 	 * @param filename the filename of the file to load trains from
@@ -143,15 +165,20 @@ public class Schedule implements Comparable<Schedule> {
 		//a priority queue to store the trains
 		PriorityQueue<Schedule> trainQueue = new PriorityQueue<Schedule>();
 
-		while ( inputScanner.hasNextInt() ) {
-			//create Node objects for source and destination
-			MultiNode source = graph.getNode(Integer.toString(inputScanner.nextInt()));
-			MultiNode destination = graph.getNode(Integer.toString(inputScanner.nextInt()));
-			//grab the dispatch time
-			int dispatchTime = inputScanner.nextInt();
+		while ( inputScanner.hasNextLine() ) {
+			String[] columns = inputScanner.nextLine().trim().split("\\s+");
+			if ( columns.length < 3 ) {
+				continue;
+			}
+			//create Node objects for source and destination, ids read as numbers so "07" is node 7
+			MultiNode source = graph.getNode(Integer.toString(Integer.parseInt(columns[0])));
+			MultiNode destination = graph.getNode(Integer.toString(Integer.parseInt(columns[1])));
+			//grab the dispatch time and the priority class
+			int dispatchTime = Integer.parseInt(columns[2]);
+			int priority = columns.length > 3 ? Integer.parseInt(columns[3]) : 0;
 
 			//make a new train and add it to the queue
-			trainQueue.add( new Schedule( source, destination, dispatchTime ) );
+			trainQueue.add( new Schedule( source, destination, dispatchTime, priority ) );
 		}
 		inputScanner.close();
 		return trainQueue;
@@ -0,0 +1,165 @@
+package schedule;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Queue of trains waiting for dispatch with one level per priority class.
+ *
+ * Each class keeps its trains on a timing wheel: a ring of buckets, one per dispatch
+ * time, covering the next WHEEL_SIZE time units. Trains further ahead wait in an
+ * overflow queue and move onto the wheel as time catches up. When time advances, the
+ * buckets that have come due are emptied into the class's ready queue.
+ *
+ * pollReady always takes the ready train of the most important class first, so a
+ * train never waits behind a less important one that was released earlier.
+ * Priority 0 is the most important class.
+ */
+public class ScheduleQueue {
+	private static final int WHEEL_SIZE = 64; // dispatch times covered by each wheel
+
+	private TreeMap<Integer, Wheel> wheels = new TreeMap<Integer, Wheel>(); // priority -> wheel, most important first
+	private int size;
+
+	public ScheduleQueue() {
+	}
+
+	public ScheduleQueue(Collection<Schedule> trains) {
+		for (Schedule train : trains) {
+			add(train);
+		}
+	}
+
+	public void add(Schedule train) {
+		Wheel wheel = wheels.get(train.getPriority());
+		if (wheel == null) {
+			wheel = new Wheel();
+			wheels.put(train.getPriority(), wheel);
+		}
+		wheel.add(train);
+		size++;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param time - current time
+	 * @return the most important train ready by time, without removing it; null if none
+	 */
+	public Schedule peekReady(int time) {
+		for (Wheel wheel : wheels.values()) {
+			wheel.advance(time);
+			Schedule train = wheel.ready.peek();
+			if (train != null && train.getDispatchTime() <= time) {
+				return train;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param time - current time
+	 * @return the most important train ready by time; null if none
+	 */
+	public Schedule pollReady(int time) {
+		Schedule train = peekReady(time);
+		if (train != null) {
+			wheels.get(train.getPriority()).ready.poll();
+			size--;
+		}
+		return train;
+	}
+
+	/**
+	 * Read the wheels without moving any train, so only the trains due by time are touched
+	 * @param time - latest dispatch time to include
+	 * @return every train ready by time, by priority class then dispatch time, without removing them
+	 */
+	public List<Schedule> upcoming(int time) {
+		List<Schedule> trains = new ArrayList<Schedule>();
+		for (Wheel wheel : wheels.values()) {
+			List<Schedule> due = new ArrayList<Schedule>();
+			for (Schedule train : wheel.ready) {
+				if (train.getDispatchTime() <= time) { due.add(train); }
+			}
+			for (int t = wheel.cursor; t <= time && t < wheel.cursor + WHEEL_SIZE; t++) {
+				due.addAll(wheel.buckets.get(t % WHEEL_SIZE));
+			}
+			if (time >= wheel.cursor + WHEEL_SIZE) {
+				for (Schedule train : wheel.overflow) {
+					if (train.getDispatchTime() <= time) { due.add(train); }
+				}
+			}
+			Collections.sort(due);
+			trains.addAll(due);
+		}
+		return trains;
+	}
+
+	/**
+	 * One class's trains: due trains in ready, the next WHEEL_SIZE times in buckets, the rest in overflow
+	 */
+	private static class Wheel {
+		private PriorityQueue<Schedule> ready = new PriorityQueue<Schedule>();
+		private List<List<Schedule>> buckets = new ArrayList<List<Schedule>>();
+		private PriorityQueue<Schedule> overflow = new PriorityQueue<Schedule>();
+		private int cursor; // every train with an earlier dispatch time is in ready
+		private int onWheel; // trains in the buckets
+
+		Wheel() {
+			for (int i = 0; i < WHEEL_SIZE; i++) {
+				buckets.add(new ArrayList<Schedule>());
+			}
+		}
+
+		void add(Schedule train) {
+			int time = train.getDispatchTime();
+			if (time < cursor) {
+				ready.add(train);
+			} else if (time < cursor + WHEEL_SIZE) {
+				buckets.get(time % WHEEL_SIZE).add(train);
+				onWheel++;
+			} else {
+				overflow.add(train);
+			}
+		}
+
+		/**
+		 * Move every train due by time into ready
+		 */
+		void advance(int time) {
+			while (cursor <= time) {
+				if (onWheel == 0 && (overflow.isEmpty() || overflow.peek().getDispatchTime() > time)) {
+					// nothing comes due by time; jump straight past it
+					cursor = time + 1;
+				} else {
+					List<Schedule> bucket = buckets.get(cursor % WHEEL_SIZE);
+					ready.addAll(bucket);
+					onWheel -= bucket.size();
+					bucket.clear();
+					cursor++;
+				}
+				// the wheel now reaches cursor + WHEEL_SIZE - 1; bring those trains in from overflow
+				while (!overflow.isEmpty() && overflow.peek().getDispatchTime() < cursor + WHEEL_SIZE) {
+					Schedule train = overflow.poll();
+					if (train.getDispatchTime() < cursor) {
+						ready.add(train);
+					} else {
+						buckets.get(train.getDispatchTime() % WHEEL_SIZE).add(train);
+						onWheel++;
+					}
+				}
+			}
+		}
+	}
+}